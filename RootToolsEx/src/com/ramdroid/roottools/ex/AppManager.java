@@ -16,7 +16,6 @@ package com.ramdroid.roottools.ex;
  limitations under the License.
  */
 
-import android.util.Log;
 import com.stericson.RootTools.RootTools;
 
 import java.io.File;
@@ -142,7 +141,13 @@ public class AppManager {
      */
     static class Internal {
 
-        private static final String TAG = "AppMover";
+        // arguments: source partition, package name, target partition
+        static final PreparedCommand MOVE_APK = new PreparedCommand("rtx_move_apk",
+                "busybox mv /\"$1\"/app/\"$2\"*.apk /\"$3\"/app/");
+
+        // arguments: partition, package name
+        static final PreparedCommand REMOVE_APK = new PreparedCommand("rtx_remove_apk",
+                "busybox rm /\"$1\"/app/\"$2\"*.apk");
 
         public static int appExistsOnPartition(ShellExec exec, String packageName, String partition) {
             int errorCode = ErrorCode.NOT_EXISTING;
@@ -152,7 +157,7 @@ public class AppManager {
                 if (files != null) {
                     for (File f : files) {
                         if (f.getName().contains(packageName)) {
-                            Log.d(TAG, "Found " + f.getPath());
+                            Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_APP_FOUND, 0, 0, f);
                             errorCode = ErrorCode.NONE;
                             break;
                         }
@@ -166,26 +171,23 @@ public class AppManager {
         }
 
         public static int appExistsOnPartitionWithRoot(ShellExec exec, final String packageName, String partition) {
-            int errorCode = exec.run("busybox ls /" + partition + "/app | grep " + packageName);
+            // we only need to know if there is one matching file
+            CommandBuilder query = new CommandBuilder()
+                    .add("busybox ls /" + partition + "/app")
+                    .setFilter(packageName)
+                    .setFirstMatchOnly();
+            int errorCode = exec.run(query);
             if (errorCode == ErrorCode.NONE) {
-                for (String line : exec.output) {
-                    Log.d(TAG, line);
-                    if (line.contains(packageName)) {
-                        errorCode = ErrorCode.NONE;
-                    }
-                    else if (line.contains("fail")) {
-                        errorCode = ErrorCode.BUSYBOX;
-                    }
-                }
+                errorCode = exec.output.isEmpty() ? ErrorCode.NOT_EXISTING : ErrorCode.NONE;
             }
             else if (errorCode == ErrorCode.COMMAND_FAILED) {
                 // not found --> this is not an error
                 errorCode = ErrorCode.NOT_EXISTING;
             }
             else {
-                Log.d(TAG, "Error code: " + errorCode);
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, 0, errorCode, null);
                 for (String line : exec.output) {
-                    Log.d(TAG, line);
+                    Tracer.traceLine(Tracer.LEVEL_WARN, Tracer.EVENT_APP_OUTPUT, 0, line);
                 }
             }
 
@@ -194,7 +196,10 @@ public class AppManager {
 
         public static int appFitsOnPartition(String packageName, String partition) {
             int errorCode = ErrorCode.INSUFFICIENT_SPACE;
-            long freeDiskSpace = RootTools.getSpace("/" + partition);
+            long freeDiskSpace = FastPath.getFreeSpace("/" + partition);
+            if (freeDiskSpace < 0) {
+                freeDiskSpace = RootTools.getSpace("/" + partition);
+            }
             long apkSpace = 0;
 
             String appPartition = PARTITION_DATA;
@@ -209,8 +214,8 @@ public class AppManager {
                 apkSpace = apk2.length() / 1024;
             }
 
-            Log.d(TAG, "Available disk space on " + partition + ": " + freeDiskSpace);
-            Log.d(TAG, "Required disk space for APK: " + apkSpace);
+            Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_APP_SPACE, 0, freeDiskSpace, partition);
+            Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_APP_SPACE, 0, apkSpace, packageName);
 
             if ((apkSpace > 0) && (freeDiskSpace > apkSpace)) {
                 errorCode = ErrorCode.NONE;
@@ -229,22 +234,27 @@ public class AppManager {
 
             if (errorCode == ErrorCode.NONE) {
                 // install or remove system app
-                String shellCmd = "busybox mv /" + sourcePartition + "/app/" + packageName + "*.apk /" + targetPartition + "/app/";
+                PreparedCommand shellCmd = MOVE_APK;
                 if ((flags & FLAG_OVERWRITE) != FLAG_OVERWRITE) {
                     errorCode = appExistsOnPartition(exec, packageName, targetPartition);
                     if (errorCode == ErrorCode.NONE) {
                         // App is already existing in target partition, so just remove it from source partition
-                        shellCmd = "busybox rm /" + sourcePartition + "/app/" + packageName + "*.apk";
+                        shellCmd = REMOVE_APK;
                     }
                     else if (errorCode == ErrorCode.NOT_EXISTING) {
                         errorCode = ErrorCode.NONE;
                     }
                 }
-                Log.d(TAG, shellCmd);
+                Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_APP_MOVE, 0, flags, shellCmd.getName());
 
                 if (errorCode == ErrorCode.NONE) {
                     // move APK to system partition or vice versa
-                    errorCode = exec.run(shellCmd);
+                    if (shellCmd == MOVE_APK) {
+                        errorCode = exec.run(MOVE_APK, sourcePartition, packageName, targetPartition);
+                    }
+                    else {
+                        errorCode = exec.run(REMOVE_APK, sourcePartition, packageName);
+                    }
                 }
 
                 if (needRemountSystem) {
@@ -45,6 +45,40 @@ public class AsyncShell {
         new ShellExec.Worker(ShellExec.API_GOTBUSYBOX, listener).execute();
     }
 
+    /**
+     * Run commands that don't need root in a plain sh process that belongs to the
+     * caller, instead of the shell that RootTools shares with everyone else.
+     * Disabled by default.
+     *
+     * @param enabled true to use a plain sh process for non-root commands
+     */
+    public static void usePlainShell(boolean enabled) {
+        ShellExec.setPlainShell(enabled);
+    }
+
+    /**
+     * Collect the results and deliver them at most once per frame, see {@link FrameDispatcher}.
+     * Disabled by default.
+     *
+     * @param enabled true to deliver the results together with the next frame
+     */
+    public static void setFrameAlignedDelivery(boolean enabled) {
+        ShellExec.setFrameAligned(enabled);
+    }
+
+    /**
+     * Derive the timeout of commands from the latencies seen for similar commands
+     * on this device, instead of using one fixed timeout for everything. Only commands
+     * that are marked with {@link CommandBuilder#setIdempotent(boolean)} are affected,
+     * they are also started in a fresh shell when they take longer than usual. All other
+     * commands keep the default timeout. Disabled by default.
+     *
+     * @param enabled true to use adaptive timeouts
+     */
+    public static void setAdaptiveTimeouts(boolean enabled) {
+        ShellExec.setAdaptiveTimeouts(enabled);
+    }
+
     /**
      * Send a command to a shell. This is the straight-forward solution if you only need to
      * send one simple command at a time.
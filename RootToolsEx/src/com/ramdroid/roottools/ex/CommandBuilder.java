@@ -19,6 +19,9 @@ package com.ramdroid.roottools.ex;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 
 /**
@@ -30,6 +33,21 @@ import java.util.ArrayList;
 public class CommandBuilder implements Parcelable {
 
     ArrayList<String> commands = new ArrayList<String>();
+    OutputStream outputStream;
+    ByteBuffer outputBuffer;
+    WritableByteChannel outputChannel;
+    boolean deferrable;
+    String filterText;
+    LineFilter lineFilter;
+    int maxResults;
+    boolean idempotent;
+
+    /**
+     * Decides which lines of the output are kept.
+     */
+    public interface LineFilter {
+        boolean accept(String line);
+    }
 
     public CommandBuilder() {
     }
@@ -46,6 +64,169 @@ public class CommandBuilder implements Parcelable {
         return this;
     }
 
+    /**
+     * Write the raw output of the commands into a stream instead of collecting lines.
+     * The bytes are neither decoded nor split into lines, so this is safe for binary
+     * data e.g. when copying a database with cat. Only lines from stderr are returned
+     * in the {@link ErrorCode.OutputListener}.
+     *
+     * Raw output is only available in the same process (e.g. with {@link AsyncShell}),
+     * it is not passed to the {@link ShellService}.
+     *
+     * @param stream Receives the raw output. The stream is not closed.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setOutputStream(OutputStream stream) {
+        this.outputStream = stream;
+        return this;
+    }
+
+    /**
+     * Write the raw output of the commands into a buffer instead of collecting lines.
+     * If the buffer is too small then the remaining output is dropped and
+     * BUFFER_OVERFLOW is returned.
+     *
+     * @param buffer Receives the raw output starting at its current position.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setOutputBuffer(ByteBuffer buffer) {
+        this.outputBuffer = buffer;
+        return this;
+    }
+
+    /**
+     * Write the raw output of the commands into a channel instead of collecting lines.
+     * When using a {@link java.nio.channels.FileChannel} the data is transferred
+     * directly into the file.
+     *
+     * @param channel Receives the raw output. The channel is not closed.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setOutputChannel(WritableByteChannel channel) {
+        this.outputChannel = channel;
+        return this;
+    }
+
+    /**
+     * Mark the commands as not urgent. The {@link ShellService} collects deferrable
+     * commands and runs them together in one shell session later, e.g. when the
+     * device wakes up anyway or is charging. This saves battery for maintenance tasks.
+     *
+     * @param deferrable true if the commands can wait.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setDeferrable(boolean deferrable) {
+        this.deferrable = deferrable;
+        return this;
+    }
+
+    /**
+     * Mark the commands as safe to run twice, e.g. because they only read something.
+     * With adaptive timeouts (see {@link AsyncShell#setAdaptiveTimeouts(boolean)}) only
+     * such commands get a deadline from the latencies seen before, and they are started
+     * again in a fresh shell when they take longer than usual.
+     *
+     * @param idempotent true if the commands can run twice.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+        return this;
+    }
+
+    /**
+     * Only keep output lines that contain the text.
+     *
+     * If the command is a single busybox command then the filter also runs in the
+     * shell with busybox grep, so lines that don't match never leave the shell.
+     *
+     * @param text The text that a line must contain.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setFilter(String text) {
+        this.filterText = text;
+        return this;
+    }
+
+    /**
+     * Only keep output lines that the filter accepts. The filter is called in the
+     * thread that reads the output. It is not passed to the {@link ShellService}.
+     *
+     * @param filter Decides which lines are kept.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setFilter(LineFilter filter) {
+        this.lineFilter = filter;
+        return this;
+    }
+
+    /**
+     * Stop reading the output after this many (matching) lines. The command is
+     * stopped if possible, otherwise the remaining output is dropped.
+     *
+     * @param max Maximum number of lines, 0 for no limit.
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setMaxResults(int max) {
+        this.maxResults = max;
+        return this;
+    }
+
+    /**
+     * Stop at the first (matching) line, e.g. for existence checks.
+     *
+     * @return the {@link CommandBuilder} object
+     */
+    public CommandBuilder setFirstMatchOnly() {
+        return setMaxResults(1);
+    }
+
+    boolean hasQuery() {
+        return filterText != null || lineFilter != null || maxResults > 0;
+    }
+
+    boolean accept(String line) {
+        return (filterText == null || line.contains(filterText))
+                && (lineFilter == null || lineFilter.accept(line));
+    }
+
+    boolean isComplete(int results) {
+        return maxResults > 0 && results >= maxResults;
+    }
+
+    /**
+     * @return The commands, with the filter and the limit added in the shell where that is safe.
+     */
+    String[] getShellCommands() {
+        String[] result = commands.toArray(new String[commands.size()]);
+        if (result.length != 1 || !result[0].startsWith("busybox ") || (filterText == null && maxResults <= 0)) {
+            return result;
+        }
+        // the status of a pipe is the one of its last command, so the command echoes
+        // its own status on fd 3 while its output passes the filter on the real stdout
+        StringBuilder cmd = new StringBuilder("{ rtx_rc=$( { { ");
+        cmd.append(result[0]).append("; echo $? >&3; }");
+        if (filterText != null) {
+            cmd.append(" | busybox grep -F -e ").append(PreparedCommand.quote(filterText));
+        }
+        if (maxResults > 0) {
+            // head ends the pipe early, this also stops the command
+            cmd.append(" | busybox head -n ").append(maxResults);
+        }
+        cmd.append(" >&4; } 3>&1 ); } 4>&1; case $rtx_rc in 0");
+        if (maxResults > 0) {
+            // killed by SIGPIPE because head has enough lines
+            cmd.append("|141");
+        }
+        cmd.append(") ;; *) (exit ${rtx_rc:-1}) ;; esac");
+        result[0] = cmd.toString();
+        return result;
+    }
+
+    boolean hasRawOutput() {
+        return outputStream != null || outputBuffer != null || outputChannel != null;
+    }
+
     @Override
     public int describeContents() {
         return 0;  //To change body of implemented methods use File | Settings | File Templates.
@@ -54,6 +235,10 @@ public class CommandBuilder implements Parcelable {
     @Override
     public void writeToParcel(Parcel out, int flags) {
         out.writeStringList(commands);
+        out.writeInt(deferrable ? 1 : 0);
+        out.writeString(filterText);
+        out.writeInt(maxResults);
+        out.writeInt(idempotent ? 1 : 0);
     }
 
     public static final Parcelable.Creator<CommandBuilder> CREATOR
@@ -69,6 +254,10 @@ public class CommandBuilder implements Parcelable {
 
     private CommandBuilder(Parcel in) {
         in.readStringList(commands);
+        deferrable = in.readInt() != 0;
+        filterText = in.readString();
+        maxResults = in.readInt();
+        idempotent = in.readInt() != 0;
     }
 
 }
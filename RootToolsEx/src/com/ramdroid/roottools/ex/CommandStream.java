@@ -0,0 +1,308 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shares the output of a command that never finishes, e.g. logcat, getevent,
+ * tail -f or inotifyd, between several subscribers.
+ *
+ * The command is started with the first subscriber and stopped when the last one
+ * leaves. Each subscriber has its own bounded buffer and receives the lines in its
+ * own thread, so a slow subscriber only loses its own lines:
+ *
+ * CommandStream.Subscription events = CommandStream.subscribe(true, "getevent -l", 1000,
+ *          CommandStream.DROP_OLDEST, new CommandStream.Listener() {
+ *      ...
+ * });
+ * ...
+ * events.unsubscribe();
+ *
+ * A long-running command would block the shared RootTools shell, so every command
+ * runs in its own shell process.
+ */
+public class CommandStream {
+
+    /**
+     * Drop the oldest buffered line when the buffer is full.
+     */
+    public static final int DROP_OLDEST = 0;
+
+    /**
+     * Drop the new line when the buffer is full.
+     */
+    public static final int DROP_NEWEST = 1;
+
+    private static final Map<String, CommandStream> streams = new HashMap<String, CommandStream>();
+
+    public interface Listener {
+
+        /**
+         * Called for each line of output, in the thread of the subscription.
+         */
+        void onLine(String line);
+
+        /**
+         * Called when the command ended on its own, after all buffered lines were delivered.
+         * @param errorCode NONE if the command exited with 0, otherwise COMMAND_FAILED.
+         */
+        void onClosed(int errorCode);
+    }
+
+    private final String key;
+    private final boolean useRoot;
+    private final String command;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private Process process;
+    private volatile boolean stopped;
+
+    /**
+     * Subscribes to the output of a command. The command is started if nobody
+     * else is subscribed to it yet.
+     *
+     * @param useRoot True if you need a root shell.
+     * @param command The command, it is compared literally with running commands.
+     * @param capacity Maximum number of lines that are buffered for this subscriber.
+     * @param dropPolicy DROP_OLDEST or DROP_NEWEST.
+     * @param listener Receives the lines.
+     * @return The subscription, or null if the command could not be started.
+     */
+    public static Subscription subscribe(boolean useRoot, String command, int capacity, int dropPolicy, Listener listener) {
+        String key = (useRoot ? "su:" : "sh:") + command;
+        Subscription subscription;
+        synchronized (streams) {
+            CommandStream stream = streams.get(key);
+            boolean isNew = (stream == null);
+            if (isNew) {
+                stream = new CommandStream(key, useRoot, command);
+            }
+            subscription = new Subscription(stream, capacity, dropPolicy, listener);
+            stream.subscriptions.add(subscription);
+            if (isNew) {
+                // subscribe first so we don't miss the first lines
+                try {
+                    stream.start();
+                } catch (IOException e) {
+                    Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, 0, 0, e);
+                    return null;
+                }
+                streams.put(key, stream);
+            }
+        }
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * @return Number of commands that are running.
+     */
+    public static int getStreamCount() {
+        synchronized (streams) {
+            return streams.size();
+        }
+    }
+
+    private CommandStream(String key, boolean useRoot, String command) {
+        this.key = key;
+        this.useRoot = useRoot;
+        this.command = command;
+    }
+
+    private void start() throws IOException {
+        process = new ProcessBuilder(useRoot ? "su" : "sh").redirectErrorStream(true).start();
+        OutputStream stdin = process.getOutputStream();
+        stdin.write(("exec " + command + "\n").getBytes());
+        stdin.flush();
+        Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_START, 0, 1, command);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "CommandStream");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null) {
+                for (Subscription subscription : subscriptions) {
+                    subscription.offer(line);
+                }
+            }
+        } catch (IOException e) {
+            // the process was destroyed
+        }
+        if (stopped) {
+            return;
+        }
+
+        // the command ended on its own
+        int errorCode = ErrorCode.COMMAND_FAILED;
+        try {
+            int exitCode = process.waitFor();
+            Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_EXIT, 0, exitCode, command);
+            if (exitCode == 0) {
+                errorCode = ErrorCode.NONE;
+            }
+        } catch (InterruptedException e) {
+            // report it as failed
+        }
+        synchronized (streams) {
+            if (streams.get(key) == this) {
+                streams.remove(key);
+            }
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.close(errorCode);
+        }
+    }
+
+    private void remove(Subscription subscription) {
+        synchronized (streams) {
+            subscriptions.remove(subscription);
+            if (!subscriptions.isEmpty() || stopped) {
+                return;
+            }
+            // the last one turns off the lights
+            stopped = true;
+            if (streams.get(key) == this) {
+                streams.remove(key);
+            }
+        }
+        process.destroy();
+    }
+
+    /**
+     * One subscriber of a {@link CommandStream}.
+     */
+    public static class Subscription {
+
+        private final CommandStream stream;
+        private final int capacity;
+        private final int dropPolicy;
+        private final Listener listener;
+        private final LinkedList<String> buffer = new LinkedList<String>();
+        private long dropped;
+        private boolean closed;
+        private int errorCode = -1;
+        private Thread thread;
+
+        private Subscription(CommandStream stream, int capacity, int dropPolicy, Listener listener) {
+            this.stream = stream;
+            this.capacity = Math.max(1, capacity);
+            this.dropPolicy = dropPolicy;
+            this.listener = listener;
+        }
+
+        /**
+         * Stops receiving lines. The command is stopped if this was the last subscriber.
+         */
+        public void unsubscribe() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                buffer.clear();
+                notifyAll();
+            }
+            stream.remove(this);
+        }
+
+        /**
+         * @return Number of lines that were dropped because the buffer was full.
+         */
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+        private void start() {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            }, "CommandStream.Subscription");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private synchronized void offer(String line) {
+            if (closed) {
+                return;
+            }
+            if (buffer.size() >= capacity) {
+                dropped += 1;
+                if (dropPolicy == DROP_NEWEST) {
+                    return;
+                }
+                buffer.poll();
+            }
+            buffer.add(line);
+            notifyAll();
+        }
+
+        private synchronized void close(int errorCode) {
+            this.errorCode = errorCode;
+            notifyAll();
+        }
+
+        private void deliver() {
+            while (true) {
+                String line;
+                int endCode;
+                synchronized (this) {
+                    while (!closed && buffer.isEmpty() && errorCode < 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    line = buffer.poll();
+                    endCode = errorCode;
+                    if (line == null) {
+                        closed = true;
+                    }
+                }
+                if (line != null) {
+                    listener.onLine(line);
+                }
+                else {
+                    listener.onClosed(endCode);
+                    return;
+                }
+            }
+        }
+    }
+}
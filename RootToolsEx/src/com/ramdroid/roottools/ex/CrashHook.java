@@ -0,0 +1,385 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a crash snapshot when the app dies from an uncaught exception.
+ *
+ * At the time of a crash there is no time to run a shell, so everything is prepared
+ * when the hook is installed: the snapshot file is created and memory-mapped, and the
+ * system info header is already encoded. On a crash only the exception and the tail of
+ * the {@link LogCollector} (if running) are formatted into the mapped file, without
+ * building strings on the way.
+ *
+ * A new crash replaces a snapshot that wasn't sent yet, the report shows how many older
+ * ones were dropped. If two threads crash at the same time only the first one is written.
+ *
+ * On the next launch the snapshot is added to an {@link ErrorReport} that is created
+ * with includePendingCrash():
+ *
+ * CrashHook.install(context);
+ * if (CrashHook.hasPendingCrash(context)) {
+ *     new ErrorReport.Builder(context)
+ *          .setEmailAddress("your.email@gmail.com")
+ *          .includePendingCrash()
+ *          .build()
+ *          .send(listener);
+ * }
+ */
+public class CrashHook implements Thread.UncaughtExceptionHandler {
+
+    private static final String FILE_NAME = "crash.snapshot";
+
+    private static final int MAGIC = 0x52544349;
+    private static final int HEADER_SIZE = 12;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_LENGTH = 4;
+    private static final int OFFSET_DROPPED = 8;
+    private static final int DEFAULT_SIZE = 128 * 1024;
+    private static final int MAX_CAUSES = 16;
+
+    private static CrashHook instance;
+
+    private final Thread.UncaughtExceptionHandler previous;
+    private final MappedByteBuffer snapshot;
+    private final byte[] header;
+    private final int size;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicInteger skipped = new AtomicInteger();
+    // prepared here, the crash path doesn't allocate them
+    private final Calendar calendar = Calendar.getInstance();
+    private final Throwable[] written = new Throwable[MAX_CAUSES];
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Installs the hook with a snapshot size of 128 kB.
+     *
+     * @param context Context of the caller.
+     * @return NONE if the hook is installed.
+     */
+    public static int install(Context context) {
+        return install(context, DEFAULT_SIZE);
+    }
+
+    /**
+     * Installs the hook. The previous handler is still called after the snapshot was written.
+     *
+     * @param context Context of the caller.
+     * @param size Maximum size of the snapshot in bytes.
+     * @return NONE if the hook is installed.
+     */
+    public static synchronized int install(Context context, int size) {
+        if (instance != null) {
+            return ErrorCode.NONE;
+        }
+        try {
+            instance = new CrashHook(context, size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorCode.ACCESS_OUTPUTFILE;
+        }
+        Thread.setDefaultUncaughtExceptionHandler(instance);
+        return ErrorCode.NONE;
+    }
+
+    /**
+     * @param context Context of the caller.
+     * @return true if a crash snapshot is waiting to be sent.
+     */
+    public static boolean hasPendingCrash(Context context) {
+        return readLength(getFile(context)) > 0;
+    }
+
+    /**
+     * Copies the pending crash snapshot.
+     *
+     * @return false if there is no snapshot.
+     */
+    static boolean writePending(Context context, OutputStream out) throws IOException {
+        File file = getFile(context);
+        int length = readLength(file);
+        if (length <= 0) {
+            return false;
+        }
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            f.seek(OFFSET_DROPPED);
+            int dropped = f.readInt();
+            if (dropped > 0) {
+                out.write(("Older crashes that were not sent: " + dropped + "\n\n").getBytes());
+            }
+            byte[] content = new byte[length];
+            f.seek(HEADER_SIZE);
+            f.readFully(content);
+            out.write(content);
+        }
+        finally {
+            f.close();
+        }
+        return true;
+    }
+
+    /**
+     * Marks the pending crash snapshot as sent.
+     */
+    static void clearPending(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                f.writeInt(0);
+            }
+            finally {
+                f.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private CrashHook(Context context, int size) throws IOException {
+        this.size = size;
+        this.previous = Thread.getDefaultUncaughtExceptionHandler();
+        this.header = createHeader(context).getBytes();
+
+        // map the file now, there is no time for that when we crash
+        File file = getFile(context);
+        boolean pending = readLength(file) > 0;
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            if (!pending || f.length() < HEADER_SIZE + size) {
+                f.setLength(HEADER_SIZE + size);
+            }
+            snapshot = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size);
+        }
+        finally {
+            f.close();
+        }
+    }
+
+    @Override
+    public void uncaughtException(Thread thread, Throwable ex) {
+        // there is only one buffer, so a second thread that crashes at the same time is dropped
+        if (writing.compareAndSet(false, true)) {
+            try {
+                writeSnapshot(thread, ex);
+            } catch (Throwable t) {
+                // never get in the way of the crash
+            } finally {
+                writing.set(false);
+            }
+        }
+        else {
+            skipped.incrementAndGet();
+        }
+        if (previous != null) {
+            previous.uncaughtException(thread, ex);
+        }
+    }
+
+    private void writeSnapshot(Thread thread, Throwable ex) {
+        // the newest crash replaces one that wasn't sent yet
+        int dropped = 0;
+        if (snapshot.getInt(OFFSET_MAGIC) == MAGIC && snapshot.getInt(OFFSET_LENGTH) > 0) {
+            dropped = snapshot.getInt(OFFSET_DROPPED) + 1;
+        }
+        snapshot.putInt(OFFSET_LENGTH, 0);
+
+        snapshot.position(HEADER_SIZE);
+        int limit = HEADER_SIZE + size;
+        snapshot.limit(limit);
+
+        put(header, limit);
+        putTime(System.currentTimeMillis(), limit);
+        put("\n\nCrash in thread ", limit);
+        put(thread.getName(), limit);
+        put(":\n", limit);
+        // the causes may form a cycle, so remember the ones we already wrote
+        int count = 0;
+        Throwable cause = ex;
+        while (cause != null && !contains(written, count, cause)) {
+            if (count == MAX_CAUSES) {
+                put("...\n", limit);
+                break;
+            }
+            written[count++] = cause;
+            if (cause != ex) {
+                put("Caused by: ", limit);
+            }
+            put(cause.getClass().getName(), limit);
+            String message = cause.getLocalizedMessage();
+            if (message != null) {
+                put(": ", limit);
+                put(message, limit);
+            }
+            put("\n", limit);
+            for (StackTraceElement element : cause.getStackTrace()) {
+                put("\tat ", limit);
+                put(element, limit);
+                put("\n", limit);
+            }
+            cause = cause.getCause();
+        }
+        for (int i = 0; i < count; ++i) {
+            written[i] = null;
+        }
+
+        if (snapshot.remaining() > 0) {
+            put("\nLog:\n", limit);
+            LogCollector.copyTail(snapshot);
+        }
+
+        snapshot.putInt(OFFSET_DROPPED, dropped + skipped.getAndSet(0));
+        snapshot.putInt(OFFSET_LENGTH, snapshot.position() - HEADER_SIZE);
+        snapshot.putInt(OFFSET_MAGIC, MAGIC);
+        snapshot.force();
+    }
+
+    private static boolean contains(Throwable[] list, int count, Throwable t) {
+        for (int i = 0; i < count; ++i) {
+            if (list[i] == t) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void put(byte[] data, int limit) {
+        snapshot.put(data, 0, Math.min(data.length, limit - snapshot.position()));
+    }
+
+    /**
+     * Same format as StackTraceElement.toString().
+     */
+    private void put(StackTraceElement element, int limit) {
+        put(element.getClassName(), limit);
+        put(".", limit);
+        put(element.getMethodName(), limit);
+        if (element.isNativeMethod()) {
+            put("(Native Method)", limit);
+        }
+        else if (element.getFileName() == null) {
+            put("(Unknown Source)", limit);
+        }
+        else {
+            put("(", limit);
+            put(element.getFileName(), limit);
+            if (element.getLineNumber() >= 0) {
+                put(":", limit);
+                putNumber(element.getLineNumber(), 1, limit);
+            }
+            put(")", limit);
+        }
+    }
+
+    /**
+     * Writes yyyy-MM-dd HH:mm:ss in the local time zone.
+     */
+    private void putTime(long time, int limit) {
+        calendar.setTimeInMillis(time);
+        putNumber(calendar.get(Calendar.YEAR), 4, limit);
+        put("-", limit);
+        putNumber(calendar.get(Calendar.MONTH) + 1, 2, limit);
+        put("-", limit);
+        putNumber(calendar.get(Calendar.DAY_OF_MONTH), 2, limit);
+        put(" ", limit);
+        putNumber(calendar.get(Calendar.HOUR_OF_DAY), 2, limit);
+        put(":", limit);
+        putNumber(calendar.get(Calendar.MINUTE), 2, limit);
+        put(":", limit);
+        putNumber(calendar.get(Calendar.SECOND), 2, limit);
+    }
+
+    private void putNumber(long value, int minDigits, int limit) {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0 && count < digits.length);
+        while (count < minDigits) {
+            digits[count++] = '0';
+        }
+        while (count > 0 && snapshot.position() < limit) {
+            snapshot.put(digits[--count]);
+        }
+    }
+
+    private void put(String s, int limit) {
+        // plain ASCII, so we don't need an encoder
+        int len = Math.min(s.length(), limit - snapshot.position());
+        for (int i = 0; i < len; ++i) {
+            char c = s.charAt(i);
+            snapshot.put((byte) (c < 128 ? c : '?'));
+        }
+    }
+
+    private static String createHeader(Context context) {
+        String version = "";
+        try {
+            PackageInfo pInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            version = pInfo.versionName + " (" + pInfo.versionCode + ")";
+        } catch (PackageManager.NameNotFoundException e) {
+            // not important enough to fail
+        }
+        return "Crash snapshot\n"
+                + "App version:      " + context.getPackageName() + " " + version + "\n"
+                + "Android:          " + Build.VERSION.RELEASE + " (" + Build.VERSION.CODENAME + ")\n"
+                + "Build ID:         " + Build.DISPLAY + "\n"
+                + "Model:            " + Build.MANUFACTURER + " " + Build.MODEL + "\n"
+                + "Crash time:       ";
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static int readLength(File file) {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return 0;
+        }
+        try {
+            RandomAccessFile f = new RandomAccessFile(file, "r");
+            try {
+                int length = (f.readInt() == MAGIC) ? f.readInt() : 0;
+                return (length > 0 && length <= f.length() - HEADER_SIZE) ? length : 0;
+            }
+            finally {
+                f.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -27,13 +27,22 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Generates an error report and sends an intent to send it by email or another service of choice.
@@ -48,6 +57,35 @@ import java.util.List;
  *
  * There are more options like changing email subject/text, title of the chooser dialog.
  * You can even choose a different log option. By default logcat is being used.
+ *
+ * The output of the log tool is streamed into the report file. Use compressLog() to
+ * gzip the report on the fly and setMaxLogSize() to only keep the most recent part of
+ * the log.
+ *
+ * If the {@link LogCollector} is running then useLogCollector() takes the log from its
+ * ring buffer, which is a lot faster and still contains lines that were already dropped
+ * from the system log.
+ *
+ * Several log sources can be collected at once with addLogBuffer() and addLogSource().
+ * They are run in parallel and merged into a single log that is ordered by timestamp:
+ *
+ * ErrorReport report = new ErrorReport.Builder(context)
+ *          .setEmailAddress("your.email@gmail.com")
+ *          .addLogBuffer("main")
+ *          .addLogBuffer("system")
+ *          .addLogSource("dmesg")
+ *          .addLogSource("cat /data/anr/traces.txt")
+ *          .build();
+ *
+ * A {@link LogFilter} set with setLogFilter() drops uninteresting lines and collapses
+ * repeated lines and stack traces while the log is written.
+ *
+ * With incrementalLog() only lines that are newer than the last report are included.
+ *
+ * A crash snapshot written by the {@link CrashHook} is added with includePendingCrash().
+ *
+ * includeProcessSnapshot() adds memory and CPU usage of all processes read from /proc,
+ * including native daemons.
  * */
 public class ErrorReport {
 
@@ -63,6 +101,16 @@ public class ErrorReport {
     private final String logFile;
     private final boolean includeSystemInfo;
     private final boolean includeRunningProcesses;
+    private final boolean compressLog;
+    private final int maxLogSize;
+    private final boolean useLogCollector;
+    private final List<LogMerger.Source> logSources;
+    private final long sectionTimeout;
+    private final LogFilter logFilter;
+    private final boolean incrementalLog;
+    private final boolean includePendingCrash;
+    private final boolean includeProcessSnapshot;
+    private final int processSnapshotSize;
 
     public ErrorReport(final Builder builder) {
         context = builder.context;
@@ -75,6 +123,16 @@ public class ErrorReport {
         logFile = builder.logFile;
         includeSystemInfo = builder.includeSystemInfo;
         includeRunningProcesses = builder.includeRunningProcesses;
+        compressLog = builder.compressLog;
+        maxLogSize = builder.maxLogSize;
+        useLogCollector = builder.useLogCollector;
+        logSources = new ArrayList<LogMerger.Source>(builder.logSources);
+        sectionTimeout = builder.sectionTimeout;
+        logFilter = builder.logFilter;
+        incrementalLog = builder.incrementalLog;
+        includePendingCrash = builder.includePendingCrash;
+        includeProcessSnapshot = builder.includeProcessSnapshot;
+        processSnapshotSize = builder.processSnapshotSize;
     }
 
     /**
@@ -124,6 +182,16 @@ public class ErrorReport {
         private String logFile;
         private boolean includeSystemInfo;
         private boolean includeRunningProcesses;
+        private boolean compressLog;
+        private int maxLogSize;
+        private boolean useLogCollector;
+        private List<LogMerger.Source> logSources = new ArrayList<LogMerger.Source>();
+        private long sectionTimeout;
+        private LogFilter logFilter;
+        private boolean incrementalLog;
+        private boolean includePendingCrash;
+        private boolean includeProcessSnapshot;
+        private int processSnapshotSize;
 
         public Builder(Context context) {
             this.context = context;
@@ -232,6 +300,117 @@ public class ErrorReport {
             return this;
         }
 
+        /**
+         * Compress the report with gzip while it is written.
+         * The extension .gz is added to the log file name.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder compressLog() {
+            this.compressLog = true;
+            return this;
+        }
+
+        /**
+         * Limit the size of the log output. If the log is bigger then the oldest
+         * lines are dropped. The header with system information is not counted.
+         * @param maxLogSize Maximum size in bytes before compression, or 0 for no limit.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder setMaxLogSize(int maxLogSize) {
+            this.maxLogSize = maxLogSize;
+            return this;
+        }
+
+        /**
+         * Take the log from the {@link LogCollector} if it is running.
+         * Otherwise the log tool is called as usual.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder useLogCollector() {
+            this.useLogCollector = true;
+            return this;
+        }
+
+        /**
+         * Add a logcat buffer to the report, e.g. main, system, events, radio or crash.
+         * When log sources are added then the log tool and its parameters are not used.
+         * @param buffer Name of the logcat buffer.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder addLogBuffer(String buffer) {
+            this.logSources.add(new LogMerger.Source(buffer, "logcat -b " + buffer + " -d -v time"));
+            return this;
+        }
+
+        /**
+         * Add the output of a command to the report, e.g. dmesg or cat /data/anr/traces.txt.
+         * When log sources are added then the log tool and its parameters are not used.
+         * @param command The command that prints the log.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder addLogSource(String command) {
+            String label = command.trim();
+            int space = label.indexOf(' ');
+            if (space > 0) {
+                label = label.substring(0, space);
+            }
+            this.logSources.add(new LogMerger.Source(label, command));
+            return this;
+        }
+
+        /**
+         * Set the maximum time to wait for each part of the header, e.g. the su version.
+         * The parts are collected in parallel. If a part takes longer then a note is added instead.
+         * @param sectionTimeout Timeout in milliseconds, by default 5000.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder setSectionTimeout(long sectionTimeout) {
+            this.sectionTimeout = sectionTimeout;
+            return this;
+        }
+
+        /**
+         * Filter the log before it is written into the report.
+         * @param logFilter The {@link LogFilter}, or null to write the complete log.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder setLogFilter(LogFilter logFilter) {
+            this.logFilter = logFilter;
+            return this;
+        }
+
+        /**
+         * Only include log lines that are newer than the ones in the last report.
+         * The timestamp of the newest line is remembered after each successful report.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder incrementalLog() {
+            this.incrementalLog = true;
+            return this;
+        }
+
+        /**
+         * Include the crash snapshot that the {@link CrashHook} wrote when the app crashed
+         * the last time. The snapshot is removed when the report was created.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder includePendingCrash() {
+            this.includePendingCrash = true;
+            return this;
+        }
+
+        /**
+         * Include a snapshot of all processes with their memory and CPU usage in the header.
+         * The processes are sorted by resident memory, biggest first.
+         * @param top Only list this many processes, or 0 to list all of them.
+         * @return Returns the {@link Builder}.
+         */
+        public Builder includeProcessSnapshot(int top) {
+            this.includeProcessSnapshot = true;
+            this.processSnapshotSize = top;
+            return this;
+        }
+
         /**
          * @return Returns a configured {@link ErrorReport} class.
          */
@@ -248,6 +427,15 @@ public class ErrorReport {
             logFile = "errorlog.txt";
             includeSystemInfo = true;
             includeRunningProcesses = false;
+            compressLog = false;
+            maxLogSize = 0;
+            useLogCollector = false;
+            sectionTimeout = 5000;
+            logFilter = null;
+            incrementalLog = false;
+            includePendingCrash = false;
+            includeProcessSnapshot = false;
+            processSnapshotSize = 0;
         }
 
     }
@@ -278,107 +466,275 @@ public class ErrorReport {
             }
 
             if (errorCode == ErrorCode.NONE) {
-                // get version information of su binary
-                String suVersion = "Unknown";
-                if (includeSystemInfo) {
-                    errorCode = exec.run(new String[] { "su -v"});
-                    if (errorCode == ErrorCode.NONE && exec.output.size() > 0) {
-                        suVersion = exec.output.get(0);
+                ReportWriter out = null;
+                boolean pendingCrash = false;
+                try {
+                    out = new ReportWriter(new File(outputFile), compressLog);
+
+                    // add header with system information
+                    createSystemInfo(out);
+
+                    // add the snapshot of the last crash
+                    pendingCrash = includePendingCrash && CrashHook.writePending(context, out);
+                    if (pendingCrash) {
+                        List<String> separator = new ArrayList<String>();
+                        separator.add("");
+                        separator.add("");
+                        addLogLines(out, separator);
                     }
-                }
 
-                // add header with system information
-                createSystemInfo(outputFile, suVersion);
+                    // run log tool
+                    errorCode = captureLog(out);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    errorCode = ErrorCode.WRITE_SYSTEM_INFO;
+                }
+                finally {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        errorCode = ErrorCode.WRITE_SYSTEM_INFO;
+                    }
+                }
 
-                // run log tool
-                final boolean append = includeSystemInfo || includeRunningProcesses;
-                final String logCommand = logTool + " " + logParams + (append ? " >> " : " > ") + outputFile;
-                errorCode = exec.run(new String[] { logCommand });
-                if (errorCode != ErrorCode.NONE) {
-                    addLogLines(outputFile, true, exec.output);
+                // keep the crash snapshot for the next try if the report is incomplete
+                if (pendingCrash && errorCode == ErrorCode.NONE) {
+                    CrashHook.clearPending(context);
                 }
             }
             exec.destroy();
             return errorCode;
         }
 
-        private int createSystemInfo(String outputFile, String suVersion) {
-            int result = ErrorCode.NONE;
-            List<String> logLines = new ArrayList<String>();
+        private int captureLog(ReportWriter out) throws IOException {
+            TailBuffer tail = null;
+            OutputStream target = out;
+            if (maxLogSize > 0) {
+                tail = new TailBuffer(maxLogSize);
+                target = tail;
+            }
+            LogFilter.Stream filter = null;
+            if (logFilter != null) {
+                filter = logFilter.open(target, findProcesses(logFilter));
+                target = filter;
+            }
+            LogCheckpoint.Stream since = null;
+            long checkpoint = 0;
+            if (incrementalLog) {
+                checkpoint = LogCheckpoint.load(context);
+                since = new LogCheckpoint.Stream(target, checkpoint);
+                target = since;
+            }
 
-            if (includeSystemInfo) {
-                ApplicationInfo appInfo = null;
-                PackageInfo pInfo = null;
-                try {
-                    final PackageManager pm = context.getPackageManager();
-                    appInfo = pm.getApplicationInfo(context.getPackageName(), 0);
-                    pInfo = pm.getPackageInfo(context.getPackageName(), 0);
-                } catch (PackageManager.NameNotFoundException e) {
-                    result = ErrorCode.INVALID_CONTEXT;
+            int errorCode = ErrorCode.NONE;
+            List<String> errors = new ArrayList<String>();
+            if (!logSources.isEmpty()) {
+                errorCode = new LogMerger(context.getCacheDir(), logSources).collect(target, errors);
+            }
+            else if (!useLogCollector || !LogCollector.snapshot(target)) {
+                String params = logParams;
+                if (checkpoint > 0 && logTool.equals("logcat") && Build.VERSION.SDK_INT >= 21) {
+                    // logcat -T needs Lollipop. Let logcat skip the old lines, our own filter
+                    // just keeps track of the newest line
+                    params += " -T '" + LogCheckpoint.formatForLogcat(checkpoint + 1) + "'";
                 }
-                if (result == ErrorCode.NONE) {
-                    CharSequence appLabel = context.getPackageManager().getApplicationLabel(appInfo);
-                    logLines.add("App version:      " + appLabel + " " + pInfo.versionName + " (" + pInfo.versionCode + ")");
-                    logLines.add("Android:          " + Build.VERSION.RELEASE + " (" + Build.VERSION.CODENAME + ")");
-                    logLines.add("Build ID:         " + Build.DISPLAY);
-                    logLines.add("Manufacturer:     " + Build.MANUFACTURER);
-                    logLines.add("Model:            " + Build.MODEL);
-                    logLines.add("Brand:            " + Build.BRAND);
-                    logLines.add("Device:           " + Build.DEVICE);
-                    logLines.add("Product:          " + Build.PRODUCT);
-                    logLines.add("Su binary:        " + suVersion);
+                CommandBuilder builder = new CommandBuilder()
+                        .add(logTool + " " + params)
+                        .setOutputStream(target);
+                errorCode = exec.runRaw(builder);
+                if (errorCode != ErrorCode.NONE) {
+                    errors = exec.output;
                 }
-                logLines.add("");
-                logLines.add("");
             }
 
-            if (includeRunningProcesses) {
-                final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-                final List<ActivityManager.RunningAppProcessInfo> runningProcesses = activityManager.getRunningAppProcesses();
-                logLines.add("Running processes:");
-                logLines.add("");
-                for (ActivityManager.RunningAppProcessInfo processInfo : runningProcesses) {
-                    logLines.add(processInfo.processName + " (" + processInfo.pid + ")");
+            if (since != null) {
+                since.finish();
+                if (errorCode == ErrorCode.NONE && since.getNewest() > checkpoint) {
+                    LogCheckpoint.save(context, since.getNewest());
                 }
-                logLines.add("");
-                logLines.add("");
             }
-
-            return addLogLines(outputFile, false, logLines);
+            if (filter != null) {
+                filter.finish();
+            }
+            if (tail != null) {
+                tail.writeTo(out);
+            }
+            addLogLines(out, errors);
+            return errorCode;
         }
 
-        private int addLogLines(String outputFile, boolean append, List<String> logLines) {
-            int result = ErrorCode.NONE;
-            if (logLines.size() > 0) {
-                // write into output file
-                FileOutputStream f = null;
-                try {
-                    f = new FileOutputStream(new File(outputFile), append);
-                    for(String line : logLines) {
-                        f.write((line + "\n").getBytes());
+        /**
+         * Looks up the pids of the uids and packages that the filter is interested in.
+         */
+        private Set<Integer> findProcesses(LogFilter filter) {
+            Set<Integer> pids = new HashSet<Integer>();
+            if (filter.getUids().isEmpty() && filter.getPackages().isEmpty()) {
+                return pids;
+            }
+            final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            final List<ActivityManager.RunningAppProcessInfo> runningProcesses = activityManager.getRunningAppProcesses();
+            if (runningProcesses == null) {
+                return pids;
+            }
+            for (ActivityManager.RunningAppProcessInfo processInfo : runningProcesses) {
+                boolean match = filter.getUids().contains(processInfo.uid);
+                for (String packageName : filter.getPackages()) {
+                    if (processInfo.processName.equals(packageName) || processInfo.processName.startsWith(packageName + ":")) {
+                        match = true;
                     }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-                    result = ErrorCode.WRITE_SYSTEM_INFO;
-                } catch (IOException e) {
-                    e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-                    result = ErrorCode.WRITE_SYSTEM_INFO;
                 }
-                finally {
-                    try {
-                        if (f != null) {
-                            f.flush();
-                            f.close();
+                if (match) {
+                    pids.add(processInfo.pid);
+                }
+            }
+            return pids;
+        }
+
+        private void createSystemInfo(ReportWriter out) throws IOException {
+            List<Section> sections = new ArrayList<Section>();
+            if (includeSystemInfo) {
+                sections.add(new Section("System info") {
+                    @Override
+                    public List<String> call() {
+                        return collectSystemInfo();
+                    }
+                });
+                sections.add(new Section("Su binary") {
+                    @Override
+                    public List<String> call() {
+                        // get version information of su binary. The other sections don't use
+                        // the shell of the worker, and the shared RootTools shell must stay open
+                        String suVersion = "Unknown";
+                        if (exec.run("su -v") == ErrorCode.NONE && exec.output.size() > 0) {
+                            suVersion = exec.output.get(0);
                         }
+                        List<String> logLines = new ArrayList<String>();
+                        logLines.add("Su binary:        " + suVersion);
+                        logLines.add("");
+                        logLines.add("");
+                        return logLines;
+                    }
+                });
+            }
 
-                    } catch (IOException e) {
-                        e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-                        result = ErrorCode.WRITE_SYSTEM_INFO;
+            if (includeRunningProcesses) {
+                sections.add(new Section("Running processes") {
+                    @Override
+                    public List<String> call() {
+                        return collectRunningProcesses();
                     }
+                });
+            }
+
+            if (includeProcessSnapshot) {
+                sections.add(new Section("Process snapshot") {
+                    @Override
+                    public List<String> call() {
+                        return collectProcessSnapshot();
+                    }
+                });
+            }
+
+            addLogLines(out, collectSections(sections));
+        }
 
+        /**
+         * Runs all sections in parallel and returns their lines in the original order.
+         */
+        private List<String> collectSections(List<Section> sections) {
+            List<String> logLines = new ArrayList<String>();
+            if (sections.isEmpty()) {
+                return logLines;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(sections.size());
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            final long start = SystemClock.uptimeMillis();
+            for (Section section : sections) {
+                results.add(executor.submit(section));
+            }
+            executor.shutdown();
+
+            for (int i = 0; i < sections.size(); ++i) {
+                Future<List<String>> result = results.get(i);
+                long remaining = Math.max(0, start + sectionTimeout - SystemClock.uptimeMillis());
+                try {
+                    logLines.addAll(result.get(remaining, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    result.cancel(true);
+                    logLines.add(sections.get(i).title + ": no result after " + sectionTimeout + " ms");
+                    logLines.add("");
+                } catch (InterruptedException e) {
+                    result.cancel(true);
+                    logLines.add(sections.get(i).title + ": interrupted");
+                    logLines.add("");
+                } catch (ExecutionException e) {
+                    logLines.add(sections.get(i).title + ": " + e.getCause());
+                    logLines.add("");
                 }
             }
-            return result;
+            return logLines;
+        }
+
+        private List<String> collectSystemInfo() {
+            List<String> logLines = new ArrayList<String>();
+            ApplicationInfo appInfo = null;
+            PackageInfo pInfo = null;
+            try {
+                final PackageManager pm = context.getPackageManager();
+                appInfo = pm.getApplicationInfo(context.getPackageName(), 0);
+                pInfo = pm.getPackageInfo(context.getPackageName(), 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                return logLines;
+            }
+            CharSequence appLabel = context.getPackageManager().getApplicationLabel(appInfo);
+            logLines.add("App version:      " + appLabel + " " + pInfo.versionName + " (" + pInfo.versionCode + ")");
+            logLines.add("Android:          " + Build.VERSION.RELEASE + " (" + Build.VERSION.CODENAME + ")");
+            logLines.add("Build ID:         " + Build.DISPLAY);
+            logLines.add("Manufacturer:     " + Build.MANUFACTURER);
+            logLines.add("Model:            " + Build.MODEL);
+            logLines.add("Brand:            " + Build.BRAND);
+            logLines.add("Device:           " + Build.DEVICE);
+            logLines.add("Product:          " + Build.PRODUCT);
+            return logLines;
+        }
+
+        private List<String> collectProcessSnapshot() {
+            List<ProcSnapshot.Entry> entries = ProcSnapshot.collect(true);
+            ProcSnapshot.sortByRss(entries);
+            if (processSnapshotSize > 0 && entries.size() > processSnapshotSize) {
+                entries = entries.subList(0, processSnapshotSize);
+            }
+            List<String> logLines = new ArrayList<String>();
+            logLines.add("Process snapshot:");
+            logLines.add("");
+            logLines.addAll(ProcSnapshot.format(entries));
+            logLines.add("");
+            logLines.add("");
+            return logLines;
+        }
+
+        private List<String> collectRunningProcesses() {
+            List<String> logLines = new ArrayList<String>();
+            final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            final List<ActivityManager.RunningAppProcessInfo> runningProcesses = activityManager.getRunningAppProcesses();
+            logLines.add("Running processes:");
+            logLines.add("");
+            for (ActivityManager.RunningAppProcessInfo processInfo : runningProcesses) {
+                logLines.add(processInfo.processName + " (" + processInfo.pid + ")");
+            }
+            logLines.add("");
+            logLines.add("");
+            return logLines;
+        }
+
+        private void addLogLines(ReportWriter out, List<String> logLines) throws IOException {
+            for (String line : logLines) {
+                out.writeLine(line);
+            }
         }
 
         private String getOutputFile() {
@@ -386,7 +742,11 @@ public class ErrorReport {
             try {
                 File ext = context.getExternalFilesDir(null);
                 if (ext.isDirectory()) {
-                    File f = new File(ext, logFile);
+                    String name = logFile;
+                    if (compressLog && !name.endsWith(".gz")) {
+                        name += ".gz";
+                    }
+                    File f = new File(ext, name);
                     outputFile = f.getPath();
                 }
             }
@@ -398,7 +758,7 @@ public class ErrorReport {
 
         private void sendIntent() {
             Intent emailIntent = new Intent(android.content.Intent.ACTION_SEND);
-            emailIntent.setType("text/plain");
+            emailIntent.setType(compressLog ? "application/x-gzip" : "text/plain");
             emailIntent.putExtra(android.content.Intent.EXTRA_EMAIL, new String[] {emailAddress});
             emailIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, emailSubject);
             emailIntent.putExtra(android.content.Intent.EXTRA_TEXT, emailText);
@@ -419,4 +779,16 @@ public class ErrorReport {
             }
         }
     }
+
+    /**
+     * One part of the report header. All sections are collected in parallel.
+     */
+    private abstract static class Section implements Callable<List<String>> {
+
+        final String title;
+
+        Section(String title) {
+            this.title = title;
+        }
+    }
 }
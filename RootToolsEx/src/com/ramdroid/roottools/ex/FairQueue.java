@@ -0,0 +1,234 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules the requests of the {@link ShellService} fairly between its clients.
+ *
+ * Each client has its own queue. Start-time fair queuing decides which queue is served
+ * next: a request gets the start tag max(virtual time, finish tag of the previous request
+ * of the client), the finish tag adds 1 / weight. The request with the lowest start tag
+ * runs first, so a client that just sends one command doesn't wait behind hundreds of
+ * commands from a busy client, and a client with weight 2 gets twice as many turns.
+ *
+ * A client can also be limited to a number of commands that run at the same time and
+ * to a number of commands per second.
+ */
+class FairQueue {
+
+    static final String DEFAULT_CLIENT = "default";
+
+    /**
+     * One command waiting for a lane.
+     */
+    static class Request {
+
+        final String cmd;
+        final CommandBuilder builder;
+        private final Client owner;
+        private final long enqueued;
+        private final double startTag;
+
+        private Request(Client owner, String cmd, CommandBuilder builder, long enqueued, double startTag) {
+            this.owner = owner;
+            this.cmd = cmd;
+            this.builder = builder;
+            this.enqueued = enqueued;
+            this.startTag = startTag;
+        }
+    }
+
+    private static class Client {
+
+        final String name;
+        int weight = 1;
+        int maxConcurrent = Integer.MAX_VALUE;
+        int ratePerSecond;
+        final LinkedList<Request> queue = new LinkedList<Request>();
+        int running;
+        double lastFinish;
+        double tokens;
+        long lastRefill;
+        long completed;
+        long totalQueueMs;
+        long maxQueueMs;
+        final LatencyStats queueTimes = new LatencyStats();
+
+        Client(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Token bucket, it holds up to one second of commands.
+         */
+        void refill(long now) {
+            if (ratePerSecond <= 0) {
+                return;
+            }
+            tokens = Math.min(ratePerSecond, tokens + (now - lastRefill) * ratePerSecond / 1000.0);
+            lastRefill = now;
+        }
+
+        long timeToNextToken() {
+            return (long) Math.ceil((1 - tokens) * 1000 / ratePerSecond);
+        }
+    }
+
+    private final Map<String, Client> clients = new HashMap<String, Client>();
+    private double virtualTime;
+
+    /**
+     * @param weight Share of the client compared to the others, 1 by default.
+     * @param maxConcurrent Maximum number of commands that run at the same time, 0 for no limit.
+     * @param ratePerSecond Maximum number of commands per second, 0 for no limit.
+     */
+    synchronized void setPolicy(String client, int weight, int maxConcurrent, int ratePerSecond) {
+        Client c = getClient(client);
+        c.weight = Math.max(1, weight);
+        c.maxConcurrent = (maxConcurrent > 0) ? maxConcurrent : Integer.MAX_VALUE;
+        c.ratePerSecond = Math.max(0, ratePerSecond);
+        c.tokens = c.ratePerSecond;
+        c.lastRefill = SystemClock.elapsedRealtime();
+        notifyAll();
+    }
+
+    synchronized void add(String client, String cmd, CommandBuilder builder) {
+        Client c = getClient(client);
+        double start = Math.max(virtualTime, c.lastFinish);
+        c.lastFinish = start + 1.0 / c.weight;
+        c.queue.add(new Request(c, cmd, builder, SystemClock.elapsedRealtime(), start));
+        notifyAll();
+    }
+
+    /**
+     * Waits for the next request that is allowed to run.
+     */
+    synchronized Request take() throws InterruptedException {
+        while (true) {
+            long now = SystemClock.elapsedRealtime();
+            Request next = null;
+            long wait = 0;
+            for (Client c : clients.values()) {
+                if (c.queue.isEmpty() || c.running >= c.maxConcurrent) {
+                    continue;
+                }
+                c.refill(now);
+                if (c.ratePerSecond > 0 && c.tokens < 1) {
+                    long t = Math.max(1, c.timeToNextToken());
+                    wait = (wait == 0) ? t : Math.min(wait, t);
+                    continue;
+                }
+                Request head = c.queue.getFirst();
+                if (next == null || head.startTag < next.startTag) {
+                    next = head;
+                }
+            }
+
+            if (next != null) {
+                Client c = next.owner;
+                c.queue.removeFirst();
+                c.running += 1;
+                if (c.ratePerSecond > 0) {
+                    c.tokens -= 1;
+                }
+                virtualTime = next.startTag;
+
+                long queueMs = now - next.enqueued;
+                c.queueTimes.record(queueMs);
+                c.totalQueueMs += queueMs;
+                c.maxQueueMs = Math.max(c.maxQueueMs, queueMs);
+                return next;
+            }
+            // wait for a new request or a finished one, with a timeout only for the next token
+            if (wait > 0) {
+                wait(wait);
+            }
+            else {
+                wait();
+            }
+        }
+    }
+
+    synchronized void done(Request request) {
+        request.owner.running -= 1;
+        request.owner.completed += 1;
+        notifyAll();
+    }
+
+    /**
+     * Returns a request that was taken but not run, it keeps its place in the queue.
+     */
+    synchronized void putBack(Request request) {
+        request.owner.queue.addFirst(request);
+        request.owner.running -= 1;
+        notifyAll();
+    }
+
+    /**
+     * Drops all waiting requests. The policies and statistics are kept.
+     */
+    synchronized void clear() {
+        for (Client c : clients.values()) {
+            c.queue.clear();
+        }
+    }
+
+    synchronized ShellService.ClientStats getStats(String client) {
+        Client c = clients.get(client);
+        return (c != null) ? createStats(c) : new ShellService.ClientStats(client);
+    }
+
+    synchronized List<ShellService.ClientStats> getStats() {
+        List<ShellService.ClientStats> stats = new ArrayList<ShellService.ClientStats>();
+        for (Client c : clients.values()) {
+            stats.add(createStats(c));
+        }
+        return stats;
+    }
+
+    private ShellService.ClientStats createStats(Client c) {
+        ShellService.ClientStats stats = new ShellService.ClientStats(c.name);
+        stats.queued = c.queue.size();
+        stats.running = c.running;
+        stats.completed = c.completed;
+        stats.totalQueueMs = c.totalQueueMs;
+        stats.maxQueueMs = c.maxQueueMs;
+        stats.p50QueueMs = c.queueTimes.percentile(50);
+        stats.p95QueueMs = c.queueTimes.percentile(95);
+        return stats;
+    }
+
+    private Client getClient(String name) {
+        if (name == null) {
+            name = DEFAULT_CLIENT;
+        }
+        Client c = clients.get(name);
+        if (c == null) {
+            c = new Client(name);
+            clients.put(name, c);
+        }
+        return c;
+    }
+}
@@ -0,0 +1,280 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.os.StatFs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Answers simple shell commands in Java without spawning a shell.
+ *
+ * Only single commands without any shell syntax (pipes, redirections, variables, quotes...)
+ * are looked at. A {@link Resolver} returns NOT_RESOLVED whenever it can't give a definite
+ * answer, e.g. because we have no read permission, and the command is sent to the shell
+ * as usual. This way the result is always the same as if the shell was used.
+ *
+ * The answers are read with the uid and mount namespace of the app. A root shell can see
+ * a different tree, e.g. under /storage or after a remount, so commands for a root shell
+ * only use the fast paths after {@link #setEnabledForRoot(boolean)}.
+ *
+ * Built-in resolvers:
+ *
+ * ls DIR           --> list of file names
+ * cat FILE         --> content of a readable file, e.g. from /proc
+ * test -e|-f|-d    --> exit code only, also as [ -e PATH ]
+ *
+ * All paths need to be absolute. More resolvers can be added with {@link #register(Resolver)}.
+ */
+public class FastPath {
+
+    public static final int NOT_RESOLVED = -1;
+
+    private static final String SHELL_SYNTAX = "|&;<>()$`\\\"'*?{}~=";
+
+    private static final List<Resolver> resolvers = new ArrayList<Resolver>();
+    private static volatile boolean enabled = true;
+    private static volatile boolean enabledForRoot = false;
+
+    static {
+        resolvers.add(new ListResolver());
+        resolvers.add(new CatResolver());
+        resolvers.add(new TestResolver());
+    }
+
+    /**
+     * Interface to answer a command in Java.
+     */
+    public interface Resolver {
+
+        /**
+         * @param args The command split into arguments, args[0] is the command name
+         * @param output Receives the output lines
+         * @return The error code, or NOT_RESOLVED if the shell has to be used
+         */
+        int resolve(String[] args, List<String> output);
+    }
+
+    /**
+     * Add a custom resolver. Resolvers are asked in the order they were added.
+     *
+     * @param resolver The new {@link Resolver}
+     */
+    public static void register(Resolver resolver) {
+        synchronized (resolvers) {
+            resolvers.add(resolver);
+        }
+    }
+
+    /**
+     * Turn the fast paths on or off. They are enabled by default.
+     *
+     * @param enabled false to always use the shell
+     */
+    public static void setEnabled(boolean enabled) {
+        FastPath.enabled = enabled;
+    }
+
+    /**
+     * Also use the fast paths for commands that are sent to a root shell. Disabled by
+     * default. Only enable this if the app sees the same files as root, i.e. su doesn't
+     * separate the mount namespaces.
+     *
+     * @param enabled true to answer root commands in Java, too
+     */
+    public static void setEnabledForRoot(boolean enabled) {
+        FastPath.enabledForRoot = enabled;
+    }
+
+    static boolean isEnabledFor(boolean useRoot) {
+        return !useRoot || enabledForRoot;
+    }
+
+    /**
+     * Try to answer a command without a shell.
+     *
+     * @param command One shell command line
+     * @param output Receives the output lines
+     * @return The error code, or NOT_RESOLVED if the shell has to be used
+     */
+    public static int resolve(String command, List<String> output) {
+        if (!enabled || !isSimple(command)) {
+            return NOT_RESOLVED;
+        }
+        String[] args = command.trim().split("\\s+");
+        if (args[0].equals("[") && args[args.length - 1].equals("]")) {
+            // [ -e PATH ] is the same as test -e PATH
+            String[] testArgs = new String[args.length - 1];
+            System.arraycopy(args, 0, testArgs, 0, testArgs.length);
+            testArgs[0] = "test";
+            args = testArgs;
+        }
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].indexOf('[') >= 0 || args[i].indexOf(']') >= 0) {
+                // glob pattern
+                return NOT_RESOLVED;
+            }
+        }
+        synchronized (resolvers) {
+            for (Resolver resolver : resolvers) {
+                int errorCode = resolver.resolve(args, output);
+                if (errorCode != NOT_RESOLVED) {
+                    Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_FAST_PATH, 0, errorCode, command);
+                    return errorCode;
+                }
+                output.clear();
+            }
+        }
+        return NOT_RESOLVED;
+    }
+
+    /**
+     * Returns the available disk space using {@link StatFs}.
+     *
+     * @param path Any path on the partition
+     * @return Available space in kB, or -1 if the partition can't be read
+     */
+    public static long getFreeSpace(String path) {
+        try {
+            StatFs stat = new StatFs(path);
+            return (long) stat.getAvailableBlocks() * stat.getBlockSize() / 1024;
+        }
+        catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isSimple(String command) {
+        if (command == null || command.trim().length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); ++i) {
+            char c = command.charAt(i);
+            if (SHELL_SYNTAX.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answers "ls DIR" if the directory is readable.
+     */
+    private static class ListResolver implements Resolver {
+
+        @Override
+        public int resolve(String[] args, List<String> output) {
+            if (!args[0].equals("ls") || args.length != 2 || !args[1].startsWith("/")) {
+                return NOT_RESOLVED;
+            }
+            String[] names = new File(args[1]).list();
+            if (names == null) {
+                return NOT_RESOLVED;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                // ls hides dot files without -a
+                if (!name.startsWith(".")) {
+                    output.add(name);
+                }
+            }
+            return ErrorCode.NONE;
+        }
+    }
+
+    /**
+     * Answers "cat FILE" if the file is readable.
+     */
+    private static class CatResolver implements Resolver {
+
+        @Override
+        public int resolve(String[] args, List<String> output) {
+            if (!args[0].equals("cat") || args.length != 2 || !args[1].startsWith("/")) {
+                return NOT_RESOLVED;
+            }
+            File file = new File(args[1]);
+            if (!file.isFile() || !file.canRead()) {
+                return NOT_RESOLVED;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        output.add(line);
+                    }
+                }
+                return ErrorCode.NONE;
+            }
+            catch (IOException e) {
+                return NOT_RESOLVED;
+            }
+            finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers "test -e|-f|-d PATH" if the parent directory is readable.
+     */
+    private static class TestResolver implements Resolver {
+
+        @Override
+        public int resolve(String[] args, List<String> output) {
+            if (!args[0].equals("test") || args.length != 3 || !args[2].startsWith("/")) {
+                return NOT_RESOLVED;
+            }
+            File file = new File(args[2]);
+            boolean result;
+            if (args[1].equals("-e")) {
+                result = file.exists();
+            }
+            else if (args[1].equals("-f")) {
+                result = file.isFile();
+            }
+            else if (args[1].equals("-d")) {
+                result = file.isDirectory();
+            }
+            else {
+                return NOT_RESOLVED;
+            }
+
+            // without read access to the parent a missing file could just be invisible to us
+            if (!result) {
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (parent == null || parent.list() == null) {
+                    return NOT_RESOLVED;
+                }
+            }
+            return result ? ErrorCode.NONE : ErrorCode.COMMAND_FAILED;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivers results to the main thread at most once per frame.
+ *
+ * Results and lines that arrive in between are collected and dispatched together in
+ * the next frame, so a bulk job that finishes hundreds of commands at once doesn't
+ * flood the main looper. On Android 4.1 and newer the dispatch is aligned with the
+ * frames of the Choreographer, older versions use a {@link Handler} with a 16 ms delay.
+ *
+ * ShellService.start(context, true, FrameDispatcher.wrap(new ErrorCode.OutputListener() {
+ *      ...
+ * }));
+ *
+ * {@link AsyncShell#setFrameAlignedDelivery(boolean)} does the same for {@link AsyncShell}.
+ */
+public class FrameDispatcher {
+
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    private static final long FRAME_TIME = 16;
+
+    private static final Object lock = new Object();
+    private static List<Runnable> queue = new ArrayList<Runnable>();
+    private static List<Runnable> dispatching = new ArrayList<Runnable>();
+    private static boolean scheduled;
+    private static int maxBatch = DEFAULT_MAX_BATCH;
+    private static long lastFrame;
+    private static Handler handler;
+
+    /**
+     * Set the maximum number of results that are delivered in one frame. The rest
+     * waits for the next frame.
+     *
+     * @param max Maximum batch size, default is 64.
+     */
+    public static void setMaxBatch(int max) {
+        synchronized (lock) {
+            maxBatch = Math.max(1, max);
+        }
+    }
+
+    /**
+     * Runs the task in the main thread with the next frame. Can be called from any thread.
+     */
+    public static void post(Runnable task) {
+        synchronized (lock) {
+            queue.add(task);
+            schedule();
+        }
+    }
+
+    /**
+     * @return A listener that passes the results to the given listener in the main thread.
+     */
+    public static ErrorCode.OutputListener wrap(final ErrorCode.OutputListener listener) {
+        return new ErrorCode.OutputListener() {
+            @Override
+            public void onResult(final int errorCode, final List<String> output) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(errorCode, output);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return A listener that passes the lines to the given listener in the main thread.
+     */
+    public static CommandStream.Listener wrap(final CommandStream.Listener listener) {
+        return new CommandStream.Listener() {
+            @Override
+            public void onLine(final String line) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLine(line);
+                    }
+                });
+            }
+
+            @Override
+            public void onClosed(final int errorCode) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onClosed(errorCode);
+                    }
+                });
+            }
+        };
+    }
+
+    private static void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // the Choreographer has to be used in the main thread
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    FrameCallback.post();
+                }
+            });
+        }
+        else {
+            long delay = Math.max(0, lastFrame + FRAME_TIME - SystemClock.uptimeMillis());
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, delay);
+        }
+    }
+
+    private static void dispatch() {
+        List<Runnable> tasks;
+        int count;
+        synchronized (lock) {
+            lastFrame = SystemClock.uptimeMillis();
+            scheduled = false;
+            // swap the lists so new results can be queued while we deliver
+            tasks = queue;
+            queue = dispatching;
+            dispatching = tasks;
+            count = Math.min(tasks.size(), maxBatch);
+            if (count < tasks.size()) {
+                // the rest waits for the next frame, before anything that came in later
+                queue.addAll(tasks.subList(count, tasks.size()));
+                tasks.subList(count, tasks.size()).clear();
+            }
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+        try {
+            for (int i = 0; i < count; ++i) {
+                tasks.get(i).run();
+            }
+        }
+        finally {
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Kept in its own class so the Choreographer is never loaded on older versions.
+     */
+    private static class FrameCallback {
+
+        private static final Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                dispatch();
+            }
+        };
+
+        static void post() {
+            Choreographer.getInstance().postFrameCallback(callback);
+        }
+    }
+}
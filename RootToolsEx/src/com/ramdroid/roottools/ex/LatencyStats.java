@@ -0,0 +1,145 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rolling latency statistics per command class, e.g. "busybox mv" or "pm".
+ *
+ * A fixed timeout is either too short for moving a big APK or far too long for "id".
+ * So the deadline of a command is derived from the latencies that were seen for its
+ * class on this device: a high percentile times a factor plus a margin. Until enough
+ * samples were collected there is no adaptive deadline and the transport default applies.
+ * A timeout counts as a sample of the deadline and doubles the next deadlines until
+ * commands complete again.
+ */
+class LatencyStats {
+
+    private static final int WINDOW = 64;
+    private static final int MIN_SAMPLES = 8;
+    private static final int MAX_CLASSES = 128;
+    private static final int PERCENTILE = 95;
+    private static final int FACTOR = 3;
+    private static final int MARGIN = 1000;
+    private static final int MIN_TIMEOUT = 2000;
+    private static final int MAX_TIMEOUT = 10 * 60 * 1000;
+    private static final int MAX_SLOWDOWN = 4;
+    private static final String OTHER = "*";
+
+    private static final Map<String, LatencyStats> classes = new HashMap<String, LatencyStats>();
+
+    private final long[] samples = new long[WINDOW];
+    private final long[] sorted = new long[WINDOW];
+    private int count;
+    private int next;
+    private int slowdown;
+
+    /**
+     * @return The class of the commands: the first word of the first command, plus the
+     *         applet for busybox and toolbox.
+     */
+    static String classify(String[] commands) {
+        if (commands.length == 0) {
+            return OTHER;
+        }
+        String[] words = commands[0].trim().split("\\s+", 3);
+        String key = words[0];
+        if (key.endsWith("()")) {
+            // definition of a prepared command
+            key = key.substring(0, key.length() - 2);
+        }
+        if (words.length > 1 && (key.equals("busybox") || key.equals("toolbox"))) {
+            key += " " + words[1];
+        }
+        return key;
+    }
+
+    static synchronized LatencyStats get(String key) {
+        LatencyStats stats = classes.get(key);
+        if (stats == null) {
+            if (classes.size() >= MAX_CLASSES) {
+                key = OTHER;
+                stats = classes.get(key);
+            }
+            if (stats == null) {
+                stats = new LatencyStats();
+                classes.put(key, stats);
+            }
+        }
+        return stats;
+    }
+
+    static synchronized void reset() {
+        classes.clear();
+    }
+
+    synchronized void record(long ms) {
+        add(ms);
+        if (slowdown > 0) {
+            slowdown -= 1;
+        }
+    }
+
+    /**
+     * The command didn't finish within ms, so the real latency is unknown but longer.
+     */
+    synchronized void recordTimeout(long ms) {
+        add(ms);
+        slowdown = Math.min(slowdown + 1, MAX_SLOWDOWN);
+    }
+
+    private void add(long ms) {
+        samples[next] = ms;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+    }
+
+    /**
+     * @return The latency in ms, or -1 if there are not enough samples.
+     */
+    synchronized long percentile(int p) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        int index = (int) Math.ceil(p / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    /**
+     * @return The deadline in ms, or 0 to use the default of the transport.
+     */
+    synchronized int getTimeout() {
+        long p = percentile(PERCENTILE);
+        if (p < 0) {
+            return 0;
+        }
+        long timeout = (p * FACTOR + MARGIN) << slowdown;
+        return (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    /**
+     * @return How long we wait before a second try is started, or 0 for no second try.
+     */
+    long getHedgeDelay() {
+        return Math.max(0, percentile(PERCENTILE));
+    }
+}
@@ -0,0 +1,416 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact container for lines of shell output.
+ *
+ * All characters are stored in one growable char array plus a table with the end
+ * offset of each line, so adding a line doesn't create a new object. A {@link String}
+ * is only created when a line is requested with {@link #get(int)}. Use {@link #line(int)},
+ * {@link #asCharSequences()} or a {@link Cursor} to look at the lines without copying
+ * them, and {@link #indexOf(CharSequence, int)} to search the buffer directly.
+ *
+ * The list can be edited like an {@link java.util.ArrayList}. Replacing, inserting or
+ * removing a line in the middle moves the characters behind it, so these operations
+ * cost as much as the remaining output.
+ */
+public class LineStore extends AbstractList<String> implements RandomAccess {
+
+    private static final int DEFAULT_CHARS = 1024;
+    private static final int DEFAULT_LINES = 32;
+
+    private char[] chars;
+    private int charCount;
+    private int[] ends;
+    private int size;
+
+    public LineStore() {
+        this(DEFAULT_CHARS, DEFAULT_LINES);
+    }
+
+    /**
+     * @param initialChars Initial capacity of the character buffer
+     * @param initialLines Initial capacity of the offset table
+     */
+    public LineStore(int initialChars, int initialLines) {
+        chars = new char[initialChars > 0 ? initialChars : DEFAULT_CHARS];
+        ends = new int[initialLines > 0 ? initialLines : DEFAULT_LINES];
+    }
+
+    @Override
+    public boolean add(String line) {
+        append(line);
+        return true;
+    }
+
+    /**
+     * Add a line without converting it to a {@link String} first.
+     *
+     * @param line The line to add
+     */
+    public void append(CharSequence line) {
+        int len = line.length();
+        ensureChars(len);
+        ensureLines();
+        if (line instanceof String) {
+            ((String) line).getChars(0, len, chars, charCount);
+        }
+        else {
+            for (int i = 0; i < len; ++i) {
+                chars[charCount + i] = line.charAt(i);
+            }
+        }
+        endLine(len);
+    }
+
+    /**
+     * Add a line directly from a character buffer.
+     *
+     * @param buffer The source buffer
+     * @param offset Offset of the first character
+     * @param len Number of characters
+     */
+    public void append(char[] buffer, int offset, int len) {
+        ensureChars(len);
+        ensureLines();
+        System.arraycopy(buffer, offset, chars, charCount, len);
+        endLine(len);
+    }
+
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        int start = lineStart(index);
+        return new String(chars, start, ends[index] - start);
+    }
+
+    @Override
+    public String set(int index, String line) {
+        String old = get(index);
+        int start = lineStart(index);
+        int len = line.length();
+        int delta = len - old.length();
+        move(ends[index], delta);
+        line.getChars(0, len, chars, start);
+        for (int i = index; i < size; ++i) {
+            ends[i] += delta;
+        }
+        return old;
+    }
+
+    @Override
+    public void add(int index, String line) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int start = lineStart(index);
+        int len = line.length();
+        ensureLines();
+        move(start, len);
+        line.getChars(0, len, chars, start);
+        System.arraycopy(ends, index, ends, index + 1, size - index);
+        ends[index] = start + len;
+        size += 1;
+        for (int i = index + 1; i < size; ++i) {
+            ends[i] += len;
+        }
+        modCount += 1;
+    }
+
+    @Override
+    public String remove(int index) {
+        String old = get(index);
+        int len = old.length();
+        move(ends[index], -len);
+        System.arraycopy(ends, index + 1, ends, index, size - index - 1);
+        size -= 1;
+        for (int i = index; i < size; ++i) {
+            ends[i] -= len;
+        }
+        modCount += 1;
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        modCount += 1;
+        charCount = 0;
+        size = 0;
+    }
+
+    /**
+     * @return The number of characters stored in all lines
+     */
+    public int charCount() {
+        return charCount;
+    }
+
+    /**
+     * @param index Line number
+     * @return The offset of the line in the character buffer
+     */
+    public int lineStart(int index) {
+        return index == 0 ? 0 : ends[index - 1];
+    }
+
+    /**
+     * @param index Line number
+     * @return The number of characters in the line
+     */
+    public int lineLength(int index) {
+        checkIndex(index);
+        return ends[index] - lineStart(index);
+    }
+
+    /**
+     * Returns a view on a line that is backed by the character buffer.
+     * The view is only valid until the {@link LineStore} is cleared or a line
+     * in front of it is changed.
+     *
+     * @param index Line number
+     * @return The line as {@link CharSequence}
+     */
+    public CharSequence line(int index) {
+        checkIndex(index);
+        int start = lineStart(index);
+        return new View(start, ends[index]);
+    }
+
+    /**
+     * @return A list of {@link CharSequence} views that are created when a line is requested.
+     */
+    public List<CharSequence> asCharSequences() {
+        return new AbstractList<CharSequence>() {
+            @Override
+            public CharSequence get(int index) {
+                return line(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Searches for the first line that contains a text.
+     *
+     * @param needle The text to search for
+     * @param fromIndex First line to look at
+     * @return The line number or -1 if no line contains the text
+     */
+    public int indexOf(CharSequence needle, int fromIndex) {
+        for (int i = fromIndex < 0 ? 0 : fromIndex; i < size; ++i) {
+            if (find(chars, lineStart(i), ends[i], needle) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return A new {@link Cursor} that is positioned before the first line.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private void ensureChars(int len) {
+        if (charCount + len > chars.length) {
+            int capacity = Math.max(chars.length * 2, charCount + len);
+            char[] grown = new char[capacity];
+            System.arraycopy(chars, 0, grown, 0, charCount);
+            chars = grown;
+        }
+    }
+
+    private void ensureLines() {
+        if (size == ends.length) {
+            int[] grown = new int[ends.length * 2];
+            System.arraycopy(ends, 0, grown, 0, size);
+            ends = grown;
+        }
+    }
+
+    /**
+     * Moves all characters from an offset to the end of the buffer by a distance.
+     * The gap that opens for a positive distance is not cleared.
+     */
+    private void move(int from, int distance) {
+        if (distance > 0) {
+            ensureChars(distance);
+        }
+        System.arraycopy(chars, from, chars, from + distance, charCount - from);
+        charCount += distance;
+    }
+
+    private void endLine(int len) {
+        charCount += len;
+        ends[size] = charCount;
+        size += 1;
+        modCount += 1;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    private static int find(char[] buffer, int start, int end, CharSequence needle) {
+        int len = needle.length();
+        if (len == 0) {
+            return start;
+        }
+        char first = needle.charAt(0);
+        int last = end - len;
+        for (int i = start; i <= last; ++i) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < len && buffer[i + j] == needle.charAt(j)) {
+                j += 1;
+            }
+            if (j == len) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read-only view on a part of the character buffer.
+     */
+    private class View implements CharSequence {
+
+        final int start;
+        final int end;
+
+        View(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new View(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, start, end - start);
+        }
+    }
+
+    /**
+     * Iterates over all lines without creating an object per line.
+     * The cursor itself is the {@link CharSequence} of the current line.
+     */
+    public class Cursor implements CharSequence {
+
+        private int index = -1;
+        private int start;
+        private int end;
+
+        /**
+         * @return true if the cursor was moved to the next line, false if there are no more lines
+         */
+        public boolean moveToNext() {
+            if (index + 1 >= size) {
+                return false;
+            }
+            index += 1;
+            start = lineStart(index);
+            end = ends[index];
+            return true;
+        }
+
+        /**
+         * @return The current line number
+         */
+        public int position() {
+            return index;
+        }
+
+        /**
+         * @param needle The text to search for
+         * @return true if the current line contains the text
+         */
+        public boolean contains(CharSequence needle) {
+            return find(chars, start, end, needle) >= 0;
+        }
+
+        /**
+         * @param prefix The text to compare with
+         * @return true if the current line starts with the text
+         */
+        public boolean startsWith(CharSequence prefix) {
+            int len = prefix.length();
+            if (len > end - start) {
+                return false;
+            }
+            for (int i = 0; i < len; ++i) {
+                if (chars[start + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int i) {
+            return chars[start + i];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new View(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, start, end - start);
+        }
+    }
+}
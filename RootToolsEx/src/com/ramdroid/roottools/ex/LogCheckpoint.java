@@ -0,0 +1,151 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Remembers the timestamp of the newest log line that was sent in an {@link ErrorReport},
+ * so the next report only needs to contain newer lines.
+ */
+class LogCheckpoint {
+
+    private static final String PREFERENCES = "RootToolsEx.ErrorReport";
+    private static final String KEY_LAST_TIME = "lastLogTime";
+
+    private static final int MAX_LINE = 64;
+
+    /**
+     * @return Timestamp of the newest line in the last report, or 0 if there is none.
+     */
+    public static long load(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getLong(KEY_LAST_TIME, 0);
+    }
+
+    public static void save(Context context, long time) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit();
+        editor.putLong(KEY_LAST_TIME, time);
+        editor.commit();
+    }
+
+    /**
+     * @return The timestamp in the format used by logcat -T
+     */
+    public static String formatForLogcat(long time) {
+        return new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(time));
+    }
+
+    /**
+     * Drops all lines that are not newer than the checkpoint and remembers the newest
+     * timestamp. Lines without a timestamp follow the decision for the line before.
+     */
+    static class Stream extends OutputStream {
+
+        private final OutputStream out;
+        private final long since;
+        private final LogMerger.TimestampParser parser = new LogMerger.TimestampParser();
+        private final byte[] start = new byte[MAX_LINE];
+        private int startLength;
+        private boolean atLineStart = true;
+        private boolean decided;
+        private boolean keep = true;
+        private long newest;
+
+        Stream(OutputStream out, long since) {
+            this.out = out;
+            this.since = since;
+        }
+
+        /**
+         * @return Timestamp of the newest line that was seen.
+         */
+        public long getNewest() {
+            return newest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int runStart = off;
+            for (int i = off; i < end; ++i) {
+                if (atLineStart) {
+                    runStart = i;
+                    atLineStart = false;
+                    decided = false;
+                    startLength = 0;
+                }
+                if (!decided) {
+                    // collect the start of the line until we can read the timestamp
+                    if (b[i] != '\n' && startLength < MAX_LINE) {
+                        start[startLength++] = b[i];
+                        continue;
+                    }
+                    decide();
+                    if (keep) {
+                        out.write(start, 0, startLength);
+                    }
+                    runStart = i;
+                }
+                if (b[i] == '\n') {
+                    if (keep) {
+                        out.write(b, runStart, i + 1 - runStart);
+                    }
+                    atLineStart = true;
+                }
+            }
+            if (!atLineStart && decided && keep && runStart < end) {
+                out.write(b, runStart, end - runStart);
+            }
+        }
+
+        /**
+         * Writes a pending incomplete line. The underlying stream is not closed.
+         */
+        public void finish() throws IOException {
+            if (!atLineStart && !decided) {
+                decide();
+                if (keep) {
+                    out.write(start, 0, startLength);
+                }
+            }
+            out.flush();
+        }
+
+        private void decide() {
+            long time = parser.parse(new String(start, 0, startLength));
+            if (time > 0) {
+                keep = time > since;
+                if (time > newest) {
+                    newest = time;
+                }
+            }
+            decided = true;
+        }
+    }
+}
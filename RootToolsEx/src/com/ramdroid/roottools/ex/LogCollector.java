@@ -0,0 +1,416 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.content.Context;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps following the log in the background and stores the most recent output in a
+ * fixed-size ring buffer file. The file is memory-mapped, so writing is cheap and
+ * the content survives when the app is killed.
+ *
+ * When the collector is running an {@link ErrorReport} created with useLogCollector()
+ * just copies the ring buffer instead of dumping the whole log again:
+ *
+ * LogCollector.start(context, 1024 * 1024);
+ * ...
+ * LogCollector.stop();
+ *
+ * A long-running log command would block the shared RootTools shell, so the collector
+ * uses its own root shell process. When the log command ends it is restarted, and the
+ * delay doubles with every run that ended quickly. The collector gives up if root
+ * access was denied or the command keeps exiting right away, so the user doesn't get
+ * a root prompt over and over.
+ *
+ * The log tool prints its whole buffer again when it starts. So the timestamp of the
+ * newest line is kept in the file, and a new run (also after the app was restarted)
+ * only appends lines that are newer. logcat skips the old lines itself with -T since
+ * Lollipop.
+ */
+public class LogCollector {
+
+    public static final String DEFAULT_COMMAND = "logcat -v time";
+
+    private static final String FILE_NAME = "logcollector.ring";
+
+    private static final int MAGIC = 0x52544c44;
+    private static final int HEADER_SIZE = 24;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_CAPACITY = 4;
+    private static final int OFFSET_POSITION = 8;
+    private static final int OFFSET_WRAPPED = 12;
+    private static final int OFFSET_NEWEST = 16;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long RESTART_DELAY = 1000;
+    private static final long MAX_RESTART_DELAY = 5 * 60 * 1000;
+    private static final long MIN_RUN_TIME = 30 * 1000;
+    private static final int MAX_QUICK_EXITS = 5;
+
+    private static volatile LogCollector instance;
+
+    private final String command;
+    private final int capacity;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer ring;
+    private final ByteBuffer tailView;
+    private int position;
+    private boolean wrapped;
+    private long newest;
+    private volatile boolean running;
+    private Process process;
+    private Thread thread;
+
+    /**
+     * Starts following the log using the default command.
+     *
+     * @param context Context of the caller, used to find the files directory.
+     * @param capacity Size of the ring buffer in bytes.
+     * @return NONE if the collector was started or is already running.
+     */
+    public static int start(Context context, int capacity) {
+        return start(context, capacity, DEFAULT_COMMAND);
+    }
+
+    /**
+     * Starts following the log.
+     *
+     * @param context Context of the caller, used to find the files directory.
+     * @param capacity Size of the ring buffer in bytes.
+     * @param command The log command, it needs to keep running and print lines with a timestamp.
+     * @return NONE if the collector was started or is already running.
+     * @throws IllegalArgumentException if the capacity isn't positive.
+     */
+    public static synchronized int start(Context context, int capacity, String command) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (instance != null) {
+            return ErrorCode.NONE;
+        }
+        try {
+            instance = new LogCollector(new File(context.getFilesDir(), FILE_NAME), capacity, command);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorCode.ACCESS_OUTPUTFILE;
+        }
+        instance.startThread();
+        return ErrorCode.NONE;
+    }
+
+    /**
+     * Stops the collector. The ring buffer file is kept.
+     */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.stopThread();
+            instance = null;
+        }
+    }
+
+    /**
+     * @return true if the collector is running. It is false after the collector gave up.
+     */
+    public static synchronized boolean isRunning() {
+        return instance != null;
+    }
+
+    /**
+     * Copies the current content of the ring buffer, oldest line first.
+     *
+     * @param out Receives the collected log.
+     * @return false if the collector isn't running.
+     */
+    static boolean snapshot(OutputStream out) throws IOException {
+        LogCollector collector;
+        synchronized (LogCollector.class) {
+            collector = instance;
+        }
+        if (collector == null) {
+            return false;
+        }
+        collector.copyTo(out);
+        return true;
+    }
+
+    /**
+     * Copies the most recent bytes of the ring buffer, as many as fit into the target.
+     * Used on the crash path, so nothing is allocated here.
+     *
+     * @param dst Receives the end of the collected log.
+     * @return false if the collector isn't running.
+     */
+    static boolean copyTail(ByteBuffer dst) {
+        LogCollector collector = instance;
+        if (collector == null) {
+            return false;
+        }
+        synchronized (collector) {
+            int available = collector.wrapped ? collector.capacity : collector.position;
+            int count = Math.min(available, dst.remaining());
+            int start = collector.position - count;
+            if (start < 0) {
+                // the tail starts before the wrap around
+                collector.copyRange(dst, collector.capacity + start, -start);
+                collector.copyRange(dst, 0, collector.position);
+            }
+            else {
+                collector.copyRange(dst, start, count);
+            }
+        }
+        return true;
+    }
+
+    private void copyRange(ByteBuffer dst, int offset, int count) {
+        tailView.limit(HEADER_SIZE + offset + count);
+        tailView.position(HEADER_SIZE + offset);
+        dst.put(tailView);
+    }
+
+    private LogCollector(File path, int capacity, String command) throws IOException {
+        this.command = command;
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(path, "rw");
+        this.ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        this.tailView = ring.duplicate();
+
+        // continue where the last collector stopped if the file is still valid
+        if (ring.getInt(OFFSET_MAGIC) == MAGIC && ring.getInt(OFFSET_CAPACITY) == capacity) {
+            position = ring.getInt(OFFSET_POSITION);
+            wrapped = ring.getInt(OFFSET_WRAPPED) != 0;
+            newest = ring.getLong(OFFSET_NEWEST);
+            if (position < 0 || position >= capacity) {
+                position = 0;
+                wrapped = false;
+                newest = 0;
+            }
+        }
+        else {
+            ring.putInt(OFFSET_MAGIC, MAGIC);
+            ring.putInt(OFFSET_CAPACITY, capacity);
+            ring.putInt(OFFSET_POSITION, 0);
+            ring.putInt(OFFSET_WRAPPED, 0);
+            ring.putLong(OFFSET_NEWEST, 0);
+        }
+    }
+
+    private void startThread() {
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                follow();
+            }
+        }, "LogCollector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void stopThread() {
+        running = false;
+        synchronized (this) {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+        thread.interrupt();
+        try {
+            thread.join(RESTART_DELAY);
+        } catch (InterruptedException e) {
+            // the thread will end on its own
+        }
+        release();
+    }
+
+    private void release() {
+        synchronized (this) {
+            ring.force();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void follow() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        OutputStream ringOut = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                append(b, off, len);
+            }
+        };
+        long delay = RESTART_DELAY;
+        int quickExits = 0;
+        while (running) {
+            Process p = null;
+            int exitCode = -1;
+            long started = System.currentTimeMillis();
+            try {
+                p = new ProcessBuilder("su").redirectErrorStream(true).start();
+                synchronized (this) {
+                    process = p;
+                }
+                long since;
+                synchronized (this) {
+                    since = newest;
+                }
+                String cmd = command;
+                if (since > 0 && command.startsWith("logcat") && Build.VERSION.SDK_INT >= 21) {
+                    cmd += " -T '" + LogCheckpoint.formatForLogcat(since + 1) + "'";
+                }
+                OutputStream stdin = p.getOutputStream();
+                stdin.write(("exec " + cmd + "\n").getBytes());
+                stdin.flush();
+
+                // drop the lines that are already in the ring
+                LogCheckpoint.Stream newer = new LogCheckpoint.Stream(ringOut, since);
+                InputStream in = p.getInputStream();
+                int count;
+                while (running && (count = in.read(chunk)) >= 0) {
+                    newer.write(chunk, 0, count);
+                    setNewest(newer.getNewest());
+                }
+                if (running) {
+                    exitCode = p.waitFor();
+                }
+            } catch (IOException e) {
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, 0, 0, e);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (p != null) {
+                    p.destroy();
+                }
+            }
+            if (!running) {
+                return;
+            }
+
+            if (System.currentTimeMillis() - started >= MIN_RUN_TIME) {
+                // the log tool ran for a while, so just start it again
+                delay = RESTART_DELAY;
+                quickExits = 0;
+            }
+            else {
+                // su was denied, su or the log tool is missing, or the tool quits right away
+                quickExits += 1;
+                if (exitCode != 0 || quickExits >= MAX_QUICK_EXITS) {
+                    Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, 0, exitCode, command);
+                    giveUp();
+                    return;
+                }
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (quickExits > 0) {
+                delay = Math.min(delay * 2, MAX_RESTART_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Stops the collector from its own thread.
+     */
+    private void giveUp() {
+        synchronized (LogCollector.class) {
+            if (instance != this) {
+                // stop() is already taking care of it
+                return;
+            }
+            instance = null;
+        }
+        running = false;
+        release();
+    }
+
+    private synchronized void append(byte[] data, int off, int len) {
+        while (len > 0) {
+            int count = Math.min(len, capacity - position);
+            ring.position(HEADER_SIZE + position);
+            ring.put(data, off, count);
+            off += count;
+            len -= count;
+            position += count;
+            if (position == capacity) {
+                position = 0;
+                wrapped = true;
+            }
+        }
+        ring.putInt(OFFSET_POSITION, position);
+        ring.putInt(OFFSET_WRAPPED, wrapped ? 1 : 0);
+    }
+
+    private synchronized void setNewest(long time) {
+        if (time > newest) {
+            newest = time;
+            ring.putLong(OFFSET_NEWEST, newest);
+        }
+    }
+
+    private void copyTo(OutputStream out) throws IOException {
+        byte[] copy;
+        int start;
+        int length;
+        synchronized (this) {
+            // copy quickly so the collector isn't blocked while we write
+            ByteBuffer view = ring.duplicate();
+            copy = new byte[wrapped ? capacity : position];
+            if (wrapped) {
+                view.position(HEADER_SIZE + position);
+                view.get(copy, 0, capacity - position);
+                view.position(HEADER_SIZE);
+                view.get(copy, capacity - position, position);
+            }
+            else {
+                view.position(HEADER_SIZE);
+                view.get(copy, 0, position);
+            }
+        }
+
+        // skip the oldest line if it was cut off
+        start = 0;
+        if (wrapped) {
+            while (start < copy.length && copy[start] != '\n') {
+                start += 1;
+            }
+            start = Math.min(start + 1, copy.length);
+        }
+        length = copy.length - start;
+        out.write(copy, start, length);
+    }
+}
@@ -0,0 +1,482 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filters a log while it is written into the {@link ErrorReport}.
+ *
+ * Lines in the logcat "-v time" format can be filtered by tag, level, pid, uid or
+ * package name. Repeated lines are collapsed into one line with a count, and stack
+ * traces that were already written are replaced by a summary at the end of the log.
+ * Lines in any other format are passed through unchanged.
+ *
+ * Everything happens in a single pass: only the current stack trace and a limited
+ * number of stack trace signatures are kept in memory.
+ *
+ * LogFilter filter = new LogFilter()
+ *          .setMinLevel('I')
+ *          .addPackage(context.getPackageName())
+ *          .excludeTag("dalvikvm");
+ */
+public class LogFilter {
+
+    private static final String LEVELS = "VDIWEFA";
+
+    private static final int MAX_LINE = 4096;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_TRACE_LINES = 256;
+    private static final int MAX_SIGNATURES = 256;
+
+    private final Set<String> tags = new HashSet<String>();
+    private final Set<String> excludedTags = new HashSet<String>();
+    private final Set<Integer> pids = new HashSet<Integer>();
+    private final Set<Integer> uids = new HashSet<Integer>();
+    private final Set<String> packages = new HashSet<String>();
+    private int minLevel = 0;
+    private boolean collapseRepeats = true;
+    private boolean collapseStackTraces = true;
+
+    /**
+     * Only keep lines with this tag. Can be called several times.
+     * @param tag The log tag.
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter addTag(String tag) {
+        tags.add(tag);
+        return this;
+    }
+
+    /**
+     * Drop all lines with this tag. Can be called several times.
+     * @param tag The log tag.
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter excludeTag(String tag) {
+        excludedTags.add(tag);
+        return this;
+    }
+
+    /**
+     * Drop lines below this level.
+     * @param level One of V, D, I, W, E, F, A.
+     * @return Returns the {@link LogFilter}.
+     * @throws IllegalArgumentException if the level is unknown.
+     */
+    public LogFilter setMinLevel(char level) {
+        int index = LEVELS.indexOf(Character.toUpperCase(level));
+        if (index < 0) {
+            throw new IllegalArgumentException("Invalid log level: " + level);
+        }
+        minLevel = index;
+        return this;
+    }
+
+    /**
+     * Only keep lines of this process. Can be called several times.
+     * @param pid The process ID.
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter addPid(int pid) {
+        pids.add(pid);
+        return this;
+    }
+
+    /**
+     * Only keep lines of processes running with this user ID. Can be called several times.
+     * The processes are looked up when the report is created.
+     * @param uid The user ID.
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter addUid(int uid) {
+        uids.add(uid);
+        return this;
+    }
+
+    /**
+     * Only keep lines of processes of this package. Can be called several times.
+     * The processes are looked up when the report is created.
+     * @param packageName Package name of the App e.g. com.example.myapp
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter addPackage(String packageName) {
+        packages.add(packageName);
+        return this;
+    }
+
+    /**
+     * Collapse identical consecutive lines. Enabled by default.
+     * @param collapseRepeats false to keep all lines.
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter setCollapseRepeats(boolean collapseRepeats) {
+        this.collapseRepeats = collapseRepeats;
+        return this;
+    }
+
+    /**
+     * Write each stack trace only once. Enabled by default.
+     * @param collapseStackTraces false to keep all stack traces.
+     * @return Returns the {@link LogFilter}.
+     */
+    public LogFilter setCollapseStackTraces(boolean collapseStackTraces) {
+        this.collapseStackTraces = collapseStackTraces;
+        return this;
+    }
+
+    Set<Integer> getUids() {
+        return uids;
+    }
+
+    Set<String> getPackages() {
+        return packages;
+    }
+
+    /**
+     * Creates the filter stage.
+     *
+     * @param out Receives the filtered log. It is not closed.
+     * @param processPids Pids of the uids and packages, looked up by the caller.
+     * @return The stream that takes the unfiltered log.
+     */
+    Stream open(OutputStream out, Set<Integer> processPids) {
+        Set<Integer> allPids = new HashSet<Integer>(pids);
+        allPids.addAll(processPids);
+        boolean filterPids = !pids.isEmpty() || !uids.isEmpty() || !packages.isEmpty();
+        return new Stream(out, filterPids ? allPids : null);
+    }
+
+    /**
+     * One parsed line.
+     */
+    private static class Entry {
+
+        String raw;
+        String time;
+        int level = -1;
+        String tag;
+        int pid;
+        String message;
+
+        boolean isLogcat() {
+            return message != null;
+        }
+
+        boolean isFrame() {
+            if (!isLogcat()) {
+                return false;
+            }
+            String m = message.trim();
+            return m.startsWith("at ") || m.startsWith("Caused by:") || (m.startsWith("... ") && m.endsWith(" more"));
+        }
+
+        boolean sameSource(Entry other) {
+            return isLogcat() && other.isLogcat() && pid == other.pid && tag.equals(other.tag);
+        }
+
+        boolean sameContent(Entry other) {
+            if (isLogcat() && other.isLogcat()) {
+                return level == other.level && tag.equals(other.tag) && message.equals(other.message);
+            }
+            return !isLogcat() && !other.isLogcat() && raw.equals(other.raw);
+        }
+    }
+
+    /**
+     * Statistics for one stack trace signature.
+     */
+    private static class TraceInfo {
+
+        final String head;
+        final String[] messages;
+        final String firstTime;
+        String lastTime;
+        int count = 1;
+
+        TraceInfo(List<Entry> trace) {
+            this.head = trace.get(0).message;
+            this.messages = new String[trace.size()];
+            for (int i = 0; i < messages.length; ++i) {
+                messages[i] = trace.get(i).message;
+            }
+            this.firstTime = trace.get(0).time;
+            this.lastTime = firstTime;
+        }
+
+        /**
+         * @return true if it is the same trace, not just the same signature.
+         */
+        boolean matches(List<Entry> trace) {
+            if (trace.size() != messages.length) {
+                return false;
+            }
+            for (int i = 0; i < messages.length; ++i) {
+                if (!messages[i].equals(trace.get(i).message)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The filter stage. Splits the bytes into lines and writes the lines that pass.
+     */
+    class Stream extends OutputStream {
+
+        private final OutputStream out;
+        private final ReportWriter.LineOutput lines;
+        private final Set<Integer> acceptedPids;
+        private final byte[] line = new byte[MAX_LINE];
+        private int lineLength;
+
+        private Entry pending;
+        private List<Entry> trace;
+        private Entry last;
+        private int repeats;
+        private String lastRepeatTime;
+        private final Map<Long, TraceInfo> signatures = new LinkedHashMap<Long, TraceInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, TraceInfo> eldest) {
+                return size() > MAX_SIGNATURES;
+            }
+        };
+
+        Stream(OutputStream out, Set<Integer> acceptedPids) {
+            this.out = out;
+            this.lines = new ReportWriter.LineOutput(out);
+            this.acceptedPids = acceptedPids;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                endLine();
+            }
+            else if (lineLength < MAX_LINE) {
+                line[lineLength++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            for (int i = off; i < end; ++i) {
+                byte c = b[i];
+                if (c == '\n') {
+                    endLine();
+                }
+                else if (lineLength < MAX_LINE) {
+                    line[lineLength++] = c;
+                }
+            }
+        }
+
+        /**
+         * Writes everything that is still pending and the stack trace summary.
+         * The underlying stream is not closed.
+         */
+        public void finish() throws IOException {
+            if (lineLength > 0) {
+                endLine();
+            }
+            if (trace != null) {
+                finishTrace();
+            }
+            if (pending != null) {
+                emit(pending);
+                pending = null;
+            }
+            flushRepeats();
+
+            boolean header = false;
+            for (TraceInfo info : signatures.values()) {
+                if (info.count > 1) {
+                    if (!header) {
+                        writeLine("");
+                        writeLine("Repeated stack traces:");
+                        header = true;
+                    }
+                    writeLine(info.count + "x " + info.head + " (" + info.firstTime + " - " + info.lastTime + ")");
+                }
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        private void endLine() throws IOException {
+            int len = lineLength;
+            if (len > 0 && line[len - 1] == '\r') {
+                len -= 1;
+            }
+            lineLength = 0;
+            if (len == 0) {
+                return;
+            }
+            handle(parse(new String(line, 0, len, UTF8)));
+        }
+
+        private void handle(Entry e) throws IOException {
+            if (e.isLogcat() && !accept(e)) {
+                return;
+            }
+            if (!collapseStackTraces) {
+                emit(e);
+                return;
+            }
+
+            if (trace != null) {
+                if (e.isFrame() && e.sameSource(trace.get(0)) && trace.size() < MAX_TRACE_LINES) {
+                    trace.add(e);
+                    return;
+                }
+                finishTrace();
+            }
+            if (pending != null && e.isFrame() && e.sameSource(pending)) {
+                // the pending line is the head of a stack trace
+                trace = new ArrayList<Entry>();
+                trace.add(pending);
+                trace.add(e);
+                pending = null;
+                return;
+            }
+            if (pending != null) {
+                emit(pending);
+            }
+            pending = e;
+        }
+
+        private void finishTrace() throws IOException {
+            Entry head = trace.get(0);
+            long signature = 1125899906842597L;
+            for (Entry e : trace) {
+                signature = 31 * signature + e.message.hashCode();
+            }
+
+            TraceInfo info = signatures.get(signature);
+            if (info == null || !info.matches(trace)) {
+                // a different trace with the same signature is kept, but not counted
+                if (info == null) {
+                    signatures.put(signature, new TraceInfo(trace));
+                }
+                for (Entry e : trace) {
+                    emit(e);
+                }
+            }
+            else {
+                info.count += 1;
+                info.lastTime = head.time;
+            }
+            trace = null;
+        }
+
+        private void emit(Entry e) throws IOException {
+            if (collapseRepeats && last != null && e.sameContent(last)) {
+                repeats += 1;
+                lastRepeatTime = e.time;
+                return;
+            }
+            flushRepeats();
+            writeLine(e.raw);
+            last = e;
+        }
+
+        private void flushRepeats() throws IOException {
+            if (repeats > 0) {
+                String until = (lastRepeatTime != null) ? ", last at " + lastRepeatTime : "";
+                writeLine("--- previous line repeated " + repeats + " times" + until + " ---");
+                repeats = 0;
+            }
+        }
+
+        private void writeLine(String s) throws IOException {
+            lines.writeLine(s);
+        }
+
+        private boolean accept(Entry e) {
+            if (e.level < minLevel) {
+                return false;
+            }
+            if (!tags.isEmpty() && !tags.contains(e.tag)) {
+                return false;
+            }
+            if (excludedTags.contains(e.tag)) {
+                return false;
+            }
+            return acceptedPids == null || acceptedPids.contains(e.pid);
+        }
+    }
+
+    /**
+     * Parses a line in the logcat "-v time" format:
+     * 05-01 12:00:00.123 D/Tag     ( 1234): message
+     *
+     * An optional "[label] " prefix from merged logs is skipped.
+     */
+    private static Entry parse(String raw) {
+        Entry e = new Entry();
+        e.raw = raw;
+        int start = 0;
+        if (raw.startsWith("[")) {
+            int end = raw.indexOf("] ");
+            if (end > 0) {
+                start = end + 2;
+            }
+        }
+        if (!parseLogcat(e, raw, start) && start > 0) {
+            parseLogcat(e, raw, 0);
+        }
+        return e;
+    }
+
+    private static boolean parseLogcat(Entry e, String raw, int start) {
+        if (raw.length() < start + 22 || raw.charAt(start + 2) != '-' || raw.charAt(start + 14) != '.'
+                || raw.charAt(start + 20) != '/') {
+            return false;
+        }
+        int level = LEVELS.indexOf(raw.charAt(start + 19));
+        int open = raw.indexOf('(', start + 21);
+        int close = (open > 0) ? raw.indexOf("): ", open) : -1;
+        if (level < 0 || close < 0) {
+            return false;
+        }
+        try {
+            e.pid = Integer.parseInt(raw.substring(open + 1, close).trim());
+        }
+        catch (NumberFormatException ex) {
+            return false;
+        }
+        e.time = raw.substring(start, start + 18);
+        e.level = level;
+        e.tag = raw.substring(start + 21, open).trim();
+        e.message = raw.substring(close + 3);
+        return true;
+    }
+}
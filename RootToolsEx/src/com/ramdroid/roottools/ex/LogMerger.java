@@ -0,0 +1,349 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.os.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Collects several log sources at the same time and merges them into one stream
+ * that is ordered by timestamp.
+ *
+ * Each source is written into its own temporary file first. The files are then merged
+ * line by line, so only one line per source is in memory at any time. Lines without a
+ * timestamp (e.g. the rest of a stack trace) keep the timestamp of the line before.
+ *
+ * Supported timestamps:
+ *
+ * 05-01 12:00:00.123 ...            --> logcat -v time
+ * [   12.345678] ...                --> dmesg, time since boot
+ * ... at 2013-05-01 12:00:00 ...    --> ANR traces
+ */
+class LogMerger {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * One log source: a label for the merged output and the command to run.
+     */
+    static class Source {
+
+        final String label;
+        final String command;
+
+        Source(String label, String command) {
+            this.label = label;
+            this.command = command;
+        }
+    }
+
+    private final File tempDir;
+    private final List<Source> sources;
+
+    public LogMerger(File tempDir, List<Source> sources) {
+        this.tempDir = tempDir;
+        this.sources = sources;
+    }
+
+    /**
+     * Runs all sources in parallel and writes the merged lines.
+     *
+     * @param out Receives the merged log.
+     * @param errors Receives error messages of failed sources.
+     * @return NONE if all sources were collected, otherwise the error code of the first failed source.
+     */
+    public int collect(OutputStream out, List<String> errors) throws IOException {
+        int errorCode = ErrorCode.NONE;
+        final List<File> files = new ArrayList<File>();
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            ExecutorService executor = Executors.newFixedThreadPool(sources.size());
+            try {
+                for (int i = 0; i < sources.size(); ++i) {
+                    final Source source = sources.get(i);
+                    // unique names, another report may be collecting at the same time
+                    final File file = File.createTempFile("logsource-", ".tmp", tempDir);
+                    files.add(file);
+                    results.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return collectSource(source, file);
+                        }
+                    }));
+                }
+
+                for (int i = 0; i < results.size(); ++i) {
+                    int result;
+                    try {
+                        result = results.get(i).get();
+                    } catch (InterruptedException e) {
+                        result = ErrorCode.COMMAND_FAILED;
+                    } catch (ExecutionException e) {
+                        result = ErrorCode.COMMAND_FAILED;
+                    }
+                    if (result != ErrorCode.NONE) {
+                        errors.add(sources.get(i).label + ": error " + result);
+                        if (errorCode == ErrorCode.NONE) {
+                            errorCode = result;
+                        }
+                    }
+                }
+            }
+            finally {
+                executor.shutdown();
+            }
+
+            merge(files, out);
+        }
+        finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        return errorCode;
+    }
+
+    private static int collectSource(Source source, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            ShellExec exec = new ShellExec(true);
+            return exec.runRaw(new CommandBuilder()
+                    .add(source.command)
+                    .setOutputStream(out));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void merge(List<File> files, OutputStream out) throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, files.size()));
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        TimestampParser parser = new TimestampParser();
+        try {
+            for (int i = 0; i < files.size(); ++i) {
+                if (!files.get(i).exists()) {
+                    continue;
+                }
+                Cursor cursor = new Cursor(i, sources.get(i).label, files.get(i), parser);
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+
+            ReportWriter.LineOutput lines = new ReportWriter.LineOutput(out);
+            StringBuilder merged = new StringBuilder();
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                merged.setLength(0);
+                merged.append('[').append(cursor.label).append("] ").append(cursor.line);
+                lines.writeLine(merged);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+        finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Current line of one source.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+
+        final int index;
+        final String label;
+        final BufferedReader reader;
+        final TimestampParser parser;
+        String line;
+        long time;
+
+        Cursor(int index, String label, File file, TimestampParser parser) throws IOException {
+            this.index = index;
+            this.label = label;
+            this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), BUFFER_SIZE);
+            this.parser = parser;
+        }
+
+        boolean next() throws IOException {
+            do {
+                line = reader.readLine();
+            } while (line != null && line.length() == 0);
+            if (line == null) {
+                return false;
+            }
+            long parsed = parser.parse(line);
+            if (parsed > 0) {
+                time = parsed;
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return index - other.index;
+        }
+    }
+
+    /**
+     * Converts the different timestamp formats into milliseconds since 1970.
+     */
+    static class TimestampParser {
+
+        private static final long MAX_CLOCK_SKEW = 24 * 60 * 60 * 1000;
+
+        private final Calendar calendar = Calendar.getInstance();
+        private long now = System.currentTimeMillis();
+        private final long bootTime = now - SystemClock.uptimeMillis();
+        private int year = calendar.get(Calendar.YEAR);
+
+        /**
+         * @return The timestamp of the line, or 0 if the line has no timestamp.
+         */
+        long parse(String line) {
+            // lines of the merged output start with the label of their source
+            if (line.length() > 0 && line.charAt(0) == '[') {
+                int end = line.indexOf("] ");
+                if (end > 1 && !isSeconds(line, 1, end)) {
+                    line = line.substring(end + 2);
+                }
+            }
+
+            if (line.length() >= 18 && line.charAt(2) == '-' && line.charAt(5) == ' '
+                    && line.charAt(8) == ':' && line.charAt(11) == ':' && line.charAt(14) == '.') {
+                // logcat: MM-DD HH:MM:SS.mmm
+                int month = number(line, 0, 2);
+                int day = number(line, 3, 5);
+                int hour = number(line, 6, 8);
+                int minute = number(line, 9, 11);
+                int second = number(line, 12, 14);
+                int millis = number(line, 15, 18);
+                if (month > 0 && day > 0 && hour >= 0 && minute >= 0 && second >= 0 && millis >= 0) {
+                    long time = toMillis(year, month, day, hour, minute, second) + millis;
+                    if (time > now + MAX_CLOCK_SKEW) {
+                        // a parser that is used for a long time (LogCollector) needs a new "now"
+                        now = System.currentTimeMillis();
+                        calendar.setTimeInMillis(now);
+                        year = calendar.get(Calendar.YEAR);
+                        time = toMillis(year, month, day, hour, minute, second) + millis;
+                    }
+                    if (time > now + MAX_CLOCK_SKEW) {
+                        // logcat has no year, a line from the future was written last year
+                        time = toMillis(year - 1, month, day, hour, minute, second) + millis;
+                    }
+                    return time;
+                }
+                return 0;
+            }
+
+            int bracket = line.indexOf('[');
+            if (bracket >= 0 && bracket < 4) {
+                // dmesg: [ seconds.micros] with an optional <level> prefix
+                int end = line.indexOf(']', bracket);
+                if (end > bracket) {
+                    try {
+                        double seconds = Double.parseDouble(line.substring(bracket + 1, end).trim());
+                        return bootTime + (long) (seconds * 1000);
+                    }
+                    catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+
+            int at = line.indexOf(" at ");
+            if (at >= 0 && line.length() >= at + 23 && line.charAt(at + 8) == '-' && line.charAt(at + 11) == '-') {
+                // ANR traces: at YYYY-MM-DD HH:MM:SS
+                int start = at + 4;
+                int y = number(line, start, start + 4);
+                int month = number(line, start + 5, start + 7);
+                int day = number(line, start + 8, start + 10);
+                int hour = number(line, start + 11, start + 13);
+                int minute = number(line, start + 14, start + 16);
+                int second = number(line, start + 17, start + 19);
+                if (y > 0 && month > 0 && day > 0 && hour >= 0 && minute >= 0 && second >= 0) {
+                    return toMillis(y, month, day, hour, minute, second);
+                }
+            }
+            return 0;
+        }
+
+        private long toMillis(int y, int month, int day, int hour, int minute, int second) {
+            calendar.clear();
+            calendar.set(y, month - 1, day, hour, minute, second);
+            return calendar.getTimeInMillis();
+        }
+
+        /**
+         * @return true if the text looks like the seconds of a dmesg timestamp.
+         */
+        private static boolean isSeconds(String s, int start, int end) {
+            for (int i = start; i < end; ++i) {
+                char c = s.charAt(i);
+                if ((c < '0' || c > '9') && c != '.' && c != ' ') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int number(String s, int start, int end) {
+            int value = 0;
+            for (int i = start; i < end; ++i) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for parsers that turn the raw output of a command into typed records.
+ *
+ * A parser is an {@link OutputStream}, so it plugs directly into the raw output of a
+ * {@link CommandBuilder}:
+ *
+ * OutputParser<Parsers.ProcessEntry> ps = Parsers.ps();
+ * AsyncShell.send(true, new CommandBuilder().add("ps").setOutputStream(ps), new ErrorCode.OutputListener() {
+ *      public void onResult(int errorCode, List<String> errors) {
+ *          for (Parsers.ProcessEntry p : ps.getRecords()) ...
+ *      }
+ * });
+ *
+ * The lines are scanned in the buffers they arrive in, only a line that spans two
+ * buffers is copied. Each line is split into fields by offsets, and a String is only
+ * created for the fields that end up in a record.
+ */
+public abstract class OutputParser<T> extends OutputStream {
+
+    public interface Listener<T> {
+        void onRecord(T record);
+    }
+
+    private static final int MAX_LINE = 4096;
+    private static final int MAX_FIELDS = 64;
+
+    private final byte[] partial = new byte[MAX_LINE];
+    private int partialLength;
+    private final List<T> records = new ArrayList<T>();
+    private Listener<T> listener;
+
+    /** Buffer of the current line. */
+    protected byte[] buf;
+    /** Offset of the current line in the buffer. */
+    protected int lineStart;
+    /** End of the current line in the buffer (exclusive). */
+    protected int lineEnd;
+    /** Start offsets of the fields of the current line. */
+    protected final int[] starts = new int[MAX_FIELDS];
+    /** End offsets of the fields of the current line (exclusive). */
+    protected final int[] ends = new int[MAX_FIELDS];
+    /** Number of fields in the current line. */
+    protected int fieldCount;
+
+    /**
+     * Pass each record to a listener instead of collecting them.
+     * The listener is called in the thread that writes the output.
+     *
+     * @return Returns the {@link OutputParser}.
+     */
+    public OutputParser<T> setListener(Listener<T> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return The records parsed so far, unless a listener was set.
+     */
+    public List<T> getRecords() {
+        return records;
+    }
+
+    /**
+     * Parses the current line, the fields are already split.
+     *
+     * @return The record or null if the line doesn't contain one.
+     */
+    protected abstract T parseLine();
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; ++i) {
+            if (b[i] != '\n') {
+                continue;
+            }
+            if (partialLength > 0) {
+                // finish the line that started in the last buffer
+                append(b, start, i - start);
+                handleLine(partial, 0, partialLength);
+                partialLength = 0;
+            }
+            else {
+                handleLine(b, start, i - start);
+            }
+            start = i + 1;
+        }
+        if (start < end) {
+            append(b, start, end - start);
+        }
+    }
+
+    /**
+     * Parses the last line if it had no line break.
+     */
+    @Override
+    public void flush() {
+        if (partialLength > 0) {
+            handleLine(partial, 0, partialLength);
+            partialLength = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private void append(byte[] b, int off, int len) {
+        int count = Math.min(len, MAX_LINE - partialLength);
+        System.arraycopy(b, off, partial, partialLength, count);
+        partialLength += count;
+    }
+
+    private void handleLine(byte[] b, int off, int len) {
+        if (len > 0 && b[off + len - 1] == '\r') {
+            len -= 1;
+        }
+        buf = b;
+        lineStart = off;
+        lineEnd = off + len;
+        fieldCount = 0;
+        int i = off;
+        while (i < lineEnd && fieldCount < MAX_FIELDS) {
+            while (i < lineEnd && (b[i] == ' ' || b[i] == '\t')) {
+                i += 1;
+            }
+            if (i == lineEnd) {
+                break;
+            }
+            starts[fieldCount] = i;
+            while (i < lineEnd && b[i] != ' ' && b[i] != '\t') {
+                i += 1;
+            }
+            ends[fieldCount] = i;
+            fieldCount += 1;
+        }
+        if (fieldCount == 0) {
+            return;
+        }
+
+        T record = parseLine();
+        if (record != null) {
+            if (listener != null) {
+                listener.onRecord(record);
+            }
+            else {
+                records.add(record);
+            }
+        }
+    }
+
+    /**
+     * @return The field as String.
+     */
+    protected String field(int index) {
+        return new String(buf, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * @return Everything from the start of the field to the end of the line.
+     */
+    protected String rest(int index) {
+        return new String(buf, starts[index], lineEnd - starts[index]);
+    }
+
+    /**
+     * @return The line as String, only for lines that don't fit into fields.
+     */
+    protected String line() {
+        return new String(buf, lineStart, lineEnd - lineStart);
+    }
+
+    protected int fieldLength(int index) {
+        return ends[index] - starts[index];
+    }
+
+    protected boolean fieldEquals(int index, String s) {
+        int len = ends[index] - starts[index];
+        if (len != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (buf[starts[index] + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected boolean lineStartsWith(String s) {
+        if (lineEnd - lineStart < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            if (buf[lineStart + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the field only contains digits.
+     */
+    protected boolean isNumber(int index) {
+        if (ends[index] == starts[index]) {
+            return false;
+        }
+        for (int i = starts[index]; i < ends[index]; ++i) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number at the start of the field, or 0.
+     */
+    protected long number(int index) {
+        long value = 0;
+        for (int i = starts[index]; i < ends[index]; ++i) {
+            byte c = buf[i];
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parses sizes like 1.5G, 300M, 12K or 4096 (bytes).
+     *
+     * @return The size in kB.
+     */
+    protected long sizeKb(int index) {
+        long whole = 0;
+        long fraction = 0;
+        long divisor = 1;
+        boolean inFraction = false;
+        long unit = -1;
+        for (int i = starts[index]; i < ends[index]; ++i) {
+            byte c = buf[i];
+            if (c >= '0' && c <= '9') {
+                if (inFraction) {
+                    fraction = fraction * 10 + (c - '0');
+                    divisor *= 10;
+                }
+                else {
+                    whole = whole * 10 + (c - '0');
+                }
+            }
+            else if (c == '.') {
+                inFraction = true;
+            }
+            else {
+                unit = (c == 'K' || c == 'k') ? 1 : (c == 'M') ? 1024 : (c == 'G') ? 1024 * 1024 : (c == 'T') ? 1024L * 1024 * 1024 : 1;
+                break;
+            }
+        }
+        if (unit < 0) {
+            // plain bytes
+            return whole / 1024;
+        }
+        return whole * unit + fraction * unit / divisor;
+    }
+}
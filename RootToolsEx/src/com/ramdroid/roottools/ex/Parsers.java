@@ -0,0 +1,464 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+/**
+ * Parsers for the output of common commands. The formats of toolbox, toybox,
+ * busybox and GNU are recognized where they differ.
+ *
+ * Each call creates a new parser, see {@link OutputParser} for how to use them.
+ */
+public class Parsers {
+
+    /**
+     * One line of ls -l or ls -lR.
+     */
+    public static class FileEntry {
+        /** Directory and name, if the directory is known from ls -lR */
+        public String path;
+        public String name;
+        public String permissions;
+        public int links;
+        public String owner;
+        public String group;
+        public long size;
+        /** Date and time as printed by ls */
+        public String date;
+        /** Target of a symbolic link or null */
+        public String linkTarget;
+
+        public boolean isDirectory() {
+            return permissions.charAt(0) == 'd';
+        }
+
+        public boolean isLink() {
+            return permissions.charAt(0) == 'l';
+        }
+    }
+
+    /**
+     * One line of df.
+     */
+    public static class DiskUsage {
+        /** The device, or null if df only shows the mount point */
+        public String filesystem;
+        public String mountPoint;
+        public long sizeKb;
+        public long usedKb;
+        public long freeKb;
+    }
+
+    /**
+     * One line of ps.
+     */
+    public static class ProcessEntry {
+        public String user;
+        public int pid;
+        public int ppid;
+        public long vsizeKb;
+        public long rssKb;
+        public String name;
+    }
+
+    /**
+     * One line of mount or /proc/mounts.
+     */
+    public static class MountPoint {
+        public String device;
+        public String mountPoint;
+        public String type;
+        public String options;
+
+        public boolean isReadOnly() {
+            return options.equals("ro") || options.startsWith("ro,") || options.contains(",ro,") || options.endsWith(",ro");
+        }
+    }
+
+    /**
+     * One line of pm list packages, with or without -f.
+     */
+    public static class PackageEntry {
+        public String packageName;
+        /** Path of the APK if pm was called with -f, otherwise null */
+        public String apkPath;
+    }
+
+    /**
+     * One line of getprop.
+     */
+    public static class Property {
+        public String key;
+        public String value;
+    }
+
+    /**
+     * @return Parser for ls -l and ls -lR.
+     */
+    public static OutputParser<FileEntry> ls() {
+        return new OutputParser<FileEntry>() {
+
+            private String directory;
+
+            @Override
+            protected FileEntry parseLine() {
+                if (!isPermissions(0)) {
+                    // ls -lR starts each directory with "path:"
+                    if (buf[lineEnd - 1] == ':') {
+                        directory = new String(buf, lineStart, lineEnd - lineStart - 1);
+                    }
+                    return null;
+                }
+                if (fieldCount < 5) {
+                    return null;
+                }
+
+                FileEntry e = new FileEntry();
+                e.permissions = field(0);
+                int i = 1;
+                if (isNumber(i) && fieldCount > 6) {
+                    // toolbox doesn't print the number of links
+                    e.links = (int) number(i++);
+                }
+                e.owner = field(i++);
+                e.group = field(i++);
+                if (i >= fieldCount) {
+                    return null;
+                }
+                if (buf[ends[i] - 1] == ',') {
+                    // device: "major, minor" instead of the size
+                    i += 2;
+                }
+                else if (isNumber(i)) {
+                    e.size = number(i++);
+                }
+                if (i >= fieldCount) {
+                    return null;
+                }
+                // ISO dates have two fields (2013-01-01 12:00), others three (Jan 1 12:00)
+                int dateFields = contains(i, (byte) '-') ? 2 : 3;
+                if (i + dateFields >= fieldCount) {
+                    return null;
+                }
+                e.date = new String(buf, starts[i], ends[i + dateFields - 1] - starts[i]);
+                i += dateFields;
+
+                String name = rest(i);
+                if (e.isLink()) {
+                    int arrow = name.indexOf(" -> ");
+                    if (arrow >= 0) {
+                        e.linkTarget = name.substring(arrow + 4);
+                        name = name.substring(0, arrow);
+                    }
+                }
+                e.name = name;
+                e.path = (directory != null) ? (directory.endsWith("/") ? directory + name : directory + "/" + name) : name;
+                return e;
+            }
+
+            private boolean isPermissions(int index) {
+                int len = fieldLength(index);
+                if (len < 10 || len > 11) {
+                    return false;
+                }
+                byte type = buf[starts[index]];
+                byte read = buf[starts[index] + 1];
+                return "-dlcbps".indexOf(type) >= 0 && (read == 'r' || read == '-');
+            }
+
+            private boolean contains(int index, byte c) {
+                for (int i = starts[index]; i < ends[index]; ++i) {
+                    if (buf[i] == c) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return Parser for df, df -k and df -h.
+     */
+    public static OutputParser<DiskUsage> df() {
+        return new OutputParser<DiskUsage>() {
+
+            private boolean mountPointFirst;
+            private boolean humanReadable;
+            private long blockBytes = 1024;
+            private String wrappedFilesystem;
+
+            @Override
+            protected DiskUsage parseLine() {
+                if (fieldEquals(0, "Filesystem")) {
+                    readHeader();
+                    return null;
+                }
+                if (mountPointFirst) {
+                    if (fieldCount < 4) {
+                        return null;
+                    }
+                    DiskUsage d = new DiskUsage();
+                    d.mountPoint = field(0);
+                    d.sizeKb = sizeKb(1);
+                    d.usedKb = sizeKb(2);
+                    d.freeKb = sizeKb(3);
+                    return d;
+                }
+
+                // long device names move the numbers to the next line
+                int i = 0;
+                String filesystem;
+                if (fieldCount == 1) {
+                    wrappedFilesystem = field(0);
+                    return null;
+                }
+                if (wrappedFilesystem != null && isSize(0)) {
+                    filesystem = wrappedFilesystem;
+                }
+                else {
+                    filesystem = field(i++);
+                }
+                wrappedFilesystem = null;
+                if (fieldCount < i + 5) {
+                    return null;
+                }
+                DiskUsage d = new DiskUsage();
+                d.filesystem = filesystem;
+                d.sizeKb = valueKb(i);
+                d.usedKb = valueKb(i + 1);
+                d.freeKb = valueKb(i + 2);
+                d.mountPoint = rest(i + 4);
+                return d;
+            }
+
+            /**
+             * toolbox: "Filesystem Size Used Free Blksize" with the mount point first
+             * -h:      "Filesystem Size Used Available Use% Mounted on"
+             * others:  "Filesystem 1K-blocks Used Available Use% Mounted on"
+             */
+            private void readHeader() {
+                mountPointFirst = false;
+                for (int i = 1; i < fieldCount; ++i) {
+                    if (fieldEquals(i, "Blksize") || fieldEquals(i, "Free")) {
+                        mountPointFirst = true;
+                    }
+                }
+                humanReadable = fieldCount >= 2 && fieldEquals(1, "Size");
+                blockBytes = 1024;
+                if (fieldCount >= 2 && !humanReadable && digits(1) > 0) {
+                    // "1K-blocks", "1024-blocks" or "512-blocks"
+                    blockBytes = number(1);
+                    if (buf[starts[1] + digits(1)] == 'K') {
+                        blockBytes *= 1024;
+                    }
+                }
+            }
+
+            private long valueKb(int index) {
+                return humanReadable ? sizeKb(index) : number(index) * blockBytes / 1024;
+            }
+
+            private boolean isSize(int index) {
+                return humanReadable ? digits(index) > 0 : isNumber(index);
+            }
+
+            private int digits(int index) {
+                int count = 0;
+                while (starts[index] + count < ends[index] && buf[starts[index] + count] >= '0' && buf[starts[index] + count] <= '9') {
+                    count += 1;
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @return Parser for ps. The columns are taken from the header line.
+     */
+    public static OutputParser<ProcessEntry> ps() {
+        return new OutputParser<ProcessEntry>() {
+
+            private int userColumn = -1;
+            private int pidColumn = -1;
+            private int ppidColumn = -1;
+            private int vsizeColumn = -1;
+            private int rssColumn = -1;
+            private int nameColumn = -1;
+            private boolean nameIsLast;
+
+            @Override
+            protected ProcessEntry parseLine() {
+                if (pidColumn < 0 || (pidColumn < fieldCount && fieldEquals(pidColumn, "PID"))) {
+                    readHeader();
+                    return null;
+                }
+                if (fieldCount <= pidColumn || !isNumber(pidColumn)) {
+                    return null;
+                }
+
+                ProcessEntry p = new ProcessEntry();
+                p.pid = (int) number(pidColumn);
+                if (userColumn >= 0 && userColumn < fieldCount) {
+                    p.user = field(userColumn);
+                }
+                if (ppidColumn >= 0 && ppidColumn < fieldCount) {
+                    p.ppid = (int) number(ppidColumn);
+                }
+                if (vsizeColumn >= 0 && vsizeColumn < fieldCount) {
+                    p.vsizeKb = isNumber(vsizeColumn) ? number(vsizeColumn) : sizeKb(vsizeColumn);
+                }
+                if (rssColumn >= 0 && rssColumn < fieldCount) {
+                    p.rssKb = isNumber(rssColumn) ? number(rssColumn) : sizeKb(rssColumn);
+                }
+                if (nameIsLast) {
+                    // toolbox prints a state column that is missing in the header
+                    p.name = field(fieldCount - 1);
+                }
+                else if (nameColumn >= 0 && nameColumn < fieldCount) {
+                    p.name = rest(nameColumn);
+                }
+                return p;
+            }
+
+            private void readHeader() {
+                for (int i = 0; i < fieldCount; ++i) {
+                    if (fieldEquals(i, "USER") || fieldEquals(i, "UID")) {
+                        userColumn = i;
+                    }
+                    else if (fieldEquals(i, "PID")) {
+                        pidColumn = i;
+                    }
+                    else if (fieldEquals(i, "PPID")) {
+                        ppidColumn = i;
+                    }
+                    else if (fieldEquals(i, "VSIZE") || fieldEquals(i, "VSZ")) {
+                        vsizeColumn = i;
+                    }
+                    else if (fieldEquals(i, "RSS")) {
+                        rssColumn = i;
+                    }
+                    else if (fieldEquals(i, "NAME")) {
+                        nameColumn = i;
+                        nameIsLast = true;
+                    }
+                    else if (fieldEquals(i, "COMMAND") || fieldEquals(i, "CMD") || fieldEquals(i, "ARGS")) {
+                        nameColumn = i;
+                        nameIsLast = false;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Parser for mount and /proc/mounts.
+     */
+    public static OutputParser<MountPoint> mount() {
+        return new OutputParser<MountPoint>() {
+
+            @Override
+            protected MountPoint parseLine() {
+                MountPoint m = new MountPoint();
+                if (fieldCount >= 6 && fieldEquals(1, "on") && fieldEquals(3, "type")) {
+                    // busybox and GNU: "device on /path type fs (options)"
+                    m.device = field(0);
+                    m.mountPoint = field(2);
+                    m.type = field(4);
+                    String options = field(5);
+                    m.options = (options.startsWith("(") && options.endsWith(")"))
+                            ? options.substring(1, options.length() - 1) : options;
+                }
+                else if (fieldCount >= 4) {
+                    // toolbox and /proc/mounts: "device /path fs options 0 0"
+                    m.device = field(0);
+                    m.mountPoint = field(1);
+                    m.type = field(2);
+                    m.options = field(3);
+                }
+                else {
+                    return null;
+                }
+                return m;
+            }
+        };
+    }
+
+    /**
+     * @return Parser for pm list packages and pm list packages -f.
+     */
+    public static OutputParser<PackageEntry> packages() {
+        return new OutputParser<PackageEntry>() {
+
+            private static final String PREFIX = "package:";
+
+            @Override
+            protected PackageEntry parseLine() {
+                if (!lineStartsWith(PREFIX)) {
+                    return null;
+                }
+                int start = lineStart + PREFIX.length();
+                int end = ends[0];
+                int separator = -1;
+                for (int i = end - 1; i >= start; --i) {
+                    if (buf[i] == '=') {
+                        separator = i;
+                        break;
+                    }
+                }
+                PackageEntry p = new PackageEntry();
+                if (separator >= 0) {
+                    p.apkPath = new String(buf, start, separator - start);
+                    p.packageName = new String(buf, separator + 1, end - separator - 1);
+                }
+                else {
+                    p.packageName = new String(buf, start, end - start);
+                }
+                return p;
+            }
+        };
+    }
+
+    /**
+     * @return Parser for getprop.
+     */
+    public static OutputParser<Property> getprop() {
+        return new OutputParser<Property>() {
+
+            @Override
+            protected Property parseLine() {
+                // [key]: [value]
+                if (buf[lineStart] != '[' || buf[lineEnd - 1] != ']') {
+                    return null;
+                }
+                int keyEnd = -1;
+                for (int i = lineStart + 1; i < lineEnd - 3; ++i) {
+                    if (buf[i] == ']' && buf[i + 1] == ':' && buf[i + 2] == ' ' && buf[i + 3] == '[') {
+                        keyEnd = i;
+                        break;
+                    }
+                }
+                if (keyEnd < 0) {
+                    return null;
+                }
+                Property p = new Property();
+                p.key = new String(buf, lineStart + 1, keyEnd - lineStart - 1);
+                p.value = new String(buf, keyEnd + 4, lineEnd - 1 - (keyEnd + 4));
+                return p;
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A command template that is installed as a shell function.
+ *
+ * The first call in a shell sends the function definition together with the call.
+ * After that only the function name and the arguments are sent, so the shell has less
+ * to read and parse. The arguments are always single-quoted, so a package name or a
+ * path can't break out of the command.
+ *
+ * The template refers to its arguments as "$1", "$2"... and should quote them itself:
+ *
+ * static final PreparedCommand REMOVE = new PreparedCommand("rtx_rm", "busybox rm \"$1\"");
+ * ...
+ * exec.run(REMOVE, path);
+ */
+public class PreparedCommand {
+
+    private final String name;
+    private final String definition;
+
+    // shells that already know the function, they are dropped when the shell is gone
+    private final Map<Object, Boolean> sessions = new WeakHashMap<Object, Boolean>();
+
+    /**
+     * @param name Name of the shell function, it must be unique.
+     * @param body The commands of the function.
+     */
+    public PreparedCommand(String name, String body) {
+        this.name = name;
+        this.definition = name + "() { " + body + "; }";
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The shell function definition.
+     */
+    public String getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return The call of the function with the quoted arguments.
+     */
+    public String invoke(String... args) {
+        StringBuilder cmd = new StringBuilder(name);
+        for (String arg : args) {
+            cmd.append(' ').append(quote(arg));
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * Puts the argument into single quotes, so the shell doesn't interpret anything.
+     */
+    public static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    synchronized boolean isInstalledIn(Object session) {
+        return session != null && sessions.containsKey(session);
+    }
+
+    synchronized void setInstalledIn(Object session) {
+        if (session != null) {
+            sessions.put(session, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return true if the shell didn't know the function, e.g. because it was replaced.
+     */
+    boolean isMissing(int errorCode, LineStore output) {
+        if (errorCode != ErrorCode.COMMAND_FAILED) {
+            return false;
+        }
+        for (int i = 0; i < output.size(); ++i) {
+            String line = output.get(i);
+            if (line.contains(name) && line.contains("not found")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,458 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Snapshot of all processes, read directly from /proc.
+ *
+ * Unlike ActivityManager.getRunningAppProcesses() this includes native daemons and
+ * reports the resident memory, CPU time, number of threads and oom_adj of each process.
+ * The pids are split between a few threads that each reuse one read buffer. Processes we
+ * are not allowed to look at are read in a single root shell command afterwards.
+ *
+ * Since Android 7 /proc is mounted with hidepid=2, so an app doesn't even see the pids
+ * of other processes. With root the pids are listed by the root shell, too.
+ *
+ * The CPU time is converted with the clock ticks from getconf CLK_TCK. If getconf is
+ * missing the raw number of ticks is shown.
+ */
+class ProcSnapshot {
+
+    private static final int THREADS = 4;
+    private static final int BUFFER_SIZE = 4096;
+
+    // ticks per second, 0 if unknown, -1 if not read yet
+    private static volatile long clockTicks = -1;
+
+    private static final byte[] VM_RSS = "VmRSS:".getBytes();
+    private static final byte[] THREADS_KEY = "Threads:".getBytes();
+
+    /**
+     * One process.
+     */
+    static class Entry {
+
+        int pid;
+        String name;
+        long rssKb;
+        long cpuTicks;
+        int threads;
+        int oomAdj;
+    }
+
+    /**
+     * Reads all processes.
+     *
+     * @param useRoot Read processes with root that we can't read ourselves.
+     * @return The processes in no particular order.
+     */
+    public static List<Entry> collect(boolean useRoot) {
+        // our own shell process, so closing it doesn't affect the shared RootTools shell
+        ShellExec exec = new ShellExec(useRoot, new ProcessTransport(useRoot));
+        try {
+            return collect(exec, useRoot);
+        }
+        finally {
+            exec.destroy();
+        }
+    }
+
+    private static List<Entry> collect(ShellExec exec, boolean useRoot) {
+        if (clockTicks < 0) {
+            clockTicks = readClockTicks(exec);
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        List<Integer> pids = listPids();
+        if (useRoot) {
+            Set<Integer> visible = new HashSet<Integer>(pids);
+            for (int pid : listPidsWithRoot(exec)) {
+                if (!visible.contains(pid)) {
+                    pids.add(pid);
+                }
+            }
+        }
+        List<Integer> missing = new ArrayList<Integer>();
+
+        int threads = Math.max(1, Math.min(THREADS, pids.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Entry>>> results = new ArrayList<Future<List<Entry>>>();
+        for (int t = 0; t < threads; ++t) {
+            final List<Integer> part = new ArrayList<Integer>();
+            for (int i = t; i < pids.size(); i += threads) {
+                part.add(pids.get(i));
+            }
+            results.add(executor.submit(new Callable<List<Entry>>() {
+                @Override
+                public List<Entry> call() {
+                    return readAll(part);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (int t = 0; t < results.size(); ++t) {
+            try {
+                entries.addAll(results.get(t).get());
+            } catch (InterruptedException e) {
+                break;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // ask root for the processes that were hidden from us
+        Set<Integer> found = new HashSet<Integer>();
+        for (Entry e : entries) {
+            found.add(e.pid);
+        }
+        for (int pid : pids) {
+            if (!found.contains(pid)) {
+                missing.add(pid);
+            }
+        }
+        if (useRoot && !missing.isEmpty()) {
+            entries.addAll(readWithRoot(exec, missing));
+        }
+        return entries;
+    }
+
+    /**
+     * Sorts the processes by resident memory, biggest first.
+     */
+    public static void sortByRss(List<Entry> entries) {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.rssKb == b.rssKb ? a.pid - b.pid : (a.rssKb > b.rssKb ? -1 : 1);
+            }
+        });
+    }
+
+    /**
+     * @return One line per process, with a header line.
+     */
+    public static List<String> format(List<Entry> entries) {
+        List<String> lines = new ArrayList<String>();
+        long ticks = clockTicks;
+        lines.add("  PID      RSS        CPU  THR  OOM  NAME");
+        for (Entry e : entries) {
+            if (ticks > 0) {
+                lines.add(String.format(Locale.US, "%5d %6d kB %8.1f s %4d %4d  %s",
+                        e.pid, e.rssKb, (double) e.cpuTicks / ticks, e.threads, e.oomAdj, e.name));
+            }
+            else {
+                lines.add(String.format(Locale.US, "%5d %6d kB %6d ticks %4d %4d  %s",
+                        e.pid, e.rssKb, e.cpuTicks, e.threads, e.oomAdj, e.name));
+            }
+        }
+        return lines;
+    }
+
+    private static List<Integer> listPids() {
+        List<Integer> pids = new ArrayList<Integer>();
+        String[] names = new File("/proc").list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.length() > 0 && Character.isDigit(name.charAt(0))) {
+                    try {
+                        pids.add(Integer.parseInt(name));
+                    }
+                    catch (NumberFormatException e) {
+                        // not a process
+                    }
+                }
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * @return The pids in /proc as seen by the root shell, including hidden ones.
+     */
+    private static List<Integer> listPidsWithRoot(ShellExec exec) {
+        List<Integer> pids = new ArrayList<Integer>();
+        exec.run("for p in /proc/[0-9]*; do echo \"${p#/proc/}\"; done");
+        for (String line : exec.output) {
+            try {
+                pids.add(Integer.parseInt(line.trim()));
+            }
+            catch (NumberFormatException e) {
+                // not a process
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * @return Clock ticks per second, or 0 if getconf isn't available.
+     */
+    private static long readClockTicks(ShellExec exec) {
+        if (exec.run("getconf CLK_TCK") == ErrorCode.NONE && !exec.output.isEmpty()) {
+            try {
+                return Long.parseLong(exec.output.get(0).trim());
+            }
+            catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return 0;
+    }
+
+    private static List<Entry> readAll(List<Integer> pids) {
+        List<Entry> entries = new ArrayList<Entry>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int pid : pids) {
+            int len = read("/proc/" + pid + "/stat", buffer);
+            if (len <= 0) {
+                continue;
+            }
+            Entry e = new Entry();
+            e.pid = pid;
+            if (!parseStat(buffer, len, e)) {
+                continue;
+            }
+
+            len = read("/proc/" + pid + "/status", buffer);
+            if (len > 0) {
+                parseStatus(buffer, len, e);
+            }
+
+            len = read("/proc/" + pid + "/oom_adj", buffer);
+            e.oomAdj = (len > 0) ? (int) parseNumber(buffer, 0, len) : 0;
+
+            len = read("/proc/" + pid + "/cmdline", buffer);
+            String cmdline = (len > 0) ? parseCmdline(buffer, len) : null;
+            if (cmdline != null) {
+                e.name = cmdline;
+            }
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static List<Entry> readWithRoot(ShellExec exec, List<Integer> pids) {
+        List<Entry> entries = new ArrayList<Entry>();
+        StringBuilder cmd = new StringBuilder("for p in");
+        for (int pid : pids) {
+            cmd.append(' ').append(pid);
+        }
+        // only builtins, so this works without busybox
+        cmd.append("; do echo \"#$p\"; cat /proc/$p/stat; cat /proc/$p/oom_adj;"
+                + " while read k v r; do case $k in VmRSS:|Threads:) echo \"$k $v\";; esac;"
+                + " done < /proc/$p/status; done");
+
+        if (exec.run(cmd.toString()) != ErrorCode.NONE && exec.output.isEmpty()) {
+            return entries;
+        }
+
+        Entry e = null;
+        int field = 0;
+        for (String line : exec.output) {
+            if (line.startsWith("#")) {
+                e = new Entry();
+                field = 0;
+                try {
+                    e.pid = Integer.parseInt(line.substring(1));
+                }
+                catch (NumberFormatException ex) {
+                    e = null;
+                }
+                continue;
+            }
+            if (e == null) {
+                continue;
+            }
+            byte[] bytes = line.getBytes();
+            if (field == 0) {
+                if (parseStat(bytes, bytes.length, e)) {
+                    entries.add(e);
+                    field = 1;
+                }
+                else {
+                    e = null;
+                }
+            }
+            else if (line.startsWith("VmRSS:") || line.startsWith("Threads:")) {
+                parseStatus(bytes, bytes.length, e);
+            }
+            else {
+                e.oomAdj = (int) parseNumber(bytes, 0, bytes.length);
+            }
+        }
+        return entries;
+    }
+
+    private static int read(String path, byte[] buffer) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            int total = 0;
+            int count;
+            while (total < buffer.length && (count = in.read(buffer, total, buffer.length - total)) > 0) {
+                total += count;
+            }
+            return total;
+        }
+        catch (IOException e) {
+            return -1;
+        }
+        finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Parses /proc/[pid]/stat: pid (comm) state ppid ... utime(14) stime(15) ... num_threads(20)
+     */
+    private static boolean parseStat(byte[] buffer, int len, Entry e) {
+        int open = -1;
+        int close = -1;
+        for (int i = 0; i < len; ++i) {
+            if (buffer[i] == '(' && open < 0) {
+                open = i;
+            }
+            else if (buffer[i] == ')') {
+                close = i;
+            }
+        }
+        if (open < 0 || close < open) {
+            return false;
+        }
+        if (e.name == null) {
+            e.name = new String(buffer, open + 1, close - open - 1);
+        }
+
+        // fields after the name start with field 3 (state)
+        int field = 3;
+        int i = close + 2;
+        long utime = 0;
+        while (i < len && field <= 20) {
+            int start = i;
+            while (i < len && buffer[i] != ' ' && buffer[i] != '\n') {
+                i += 1;
+            }
+            if (field == 14) {
+                utime = parseNumber(buffer, start, i);
+            }
+            else if (field == 15) {
+                e.cpuTicks = utime + parseNumber(buffer, start, i);
+            }
+            else if (field == 20) {
+                e.threads = (int) parseNumber(buffer, start, i);
+            }
+            field += 1;
+            i += 1;
+        }
+        return field > 20;
+    }
+
+    /**
+     * Parses the lines of /proc/[pid]/status that we need. The resident memory is
+     * already in kB there, so we don't need to know the page size.
+     */
+    private static void parseStatus(byte[] buffer, int len, Entry e) {
+        int i = 0;
+        while (i < len) {
+            if (startsWith(buffer, i, len, VM_RSS)) {
+                e.rssKb = parseNumber(buffer, skipSpaces(buffer, i + VM_RSS.length, len), len);
+            }
+            else if (startsWith(buffer, i, len, THREADS_KEY)) {
+                e.threads = (int) parseNumber(buffer, skipSpaces(buffer, i + THREADS_KEY.length, len), len);
+            }
+            while (i < len && buffer[i] != '\n') {
+                i += 1;
+            }
+            i += 1;
+        }
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int len, byte[] prefix) {
+        if (start + prefix.length > len) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(byte[] buffer, int i, int len) {
+        while (i < len && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i += 1;
+        }
+        return i;
+    }
+
+    private static String parseCmdline(byte[] buffer, int len) {
+        while (len > 0 && buffer[len - 1] == 0) {
+            len -= 1;
+        }
+        if (len == 0) {
+            // kernel threads have no command line
+            return null;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (buffer[i] == 0) {
+                buffer[i] = ' ';
+            }
+        }
+        return new String(buffer, 0, len);
+    }
+
+    private static long parseNumber(byte[] buffer, int start, int end) {
+        long value = 0;
+        boolean negative = false;
+        for (int i = start; i < end; ++i) {
+            byte c = buffer[i];
+            if (c == '-' && i == start) {
+                negative = true;
+            }
+            else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            }
+            else {
+                break;
+            }
+        }
+        return negative ? -value : value;
+    }
+}
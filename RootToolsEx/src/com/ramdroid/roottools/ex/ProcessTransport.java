@@ -0,0 +1,325 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs commands in a shell process that belongs to this transport only.
+ *
+ * The process is started with the first command and kept running until close() is
+ * called, so there is no locking with other users of a shared shell. stderr is merged
+ * into stdout. After the commands an end marker with the exit code is echoed, and the
+ * output is read until the marker shows up.
+ *
+ * The transfer runs before the output is read, so it must not wait for the output.
+ * A script that doesn't fit into the pipe is written by a separate thread, so the
+ * output is read at the same time.
+ * If the command doesn't finish before the timeout then the shell is killed, and the
+ * next command starts a new one.
+ */
+class ProcessTransport implements ShellTransport {
+
+    private static final String MARKER = "--RootToolsEx-exit-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    // scripts up to this size always fit into the pipe, even on old kernels
+    private static final int PIPE_SIZE = 4 * 1024;
+
+    private final String shell;
+    private volatile Process process;
+    private OutputStream stdin;
+    private BufferedReader stdout;
+    private Pump pump;
+
+    /**
+     * @param useRoot true to start su, otherwise a plain sh.
+     */
+    public ProcessTransport(boolean useRoot) {
+        this(useRoot ? "su" : "sh");
+    }
+
+    /**
+     * @param shell The shell binary, e.g. /bin/sh
+     */
+    public ProcessTransport(String shell) {
+        this.shell = shell;
+    }
+
+    @Override
+    public synchronized int execute(int id, String[] commands, LineListener listener, ShellExec.Transfer transfer,
+                                    int timeout) throws IOException, InterruptedException, TimeoutException {
+        boolean started = (process == null);
+        if (started) {
+            process = new ProcessBuilder(shell).redirectErrorStream(true).start();
+            stdin = process.getOutputStream();
+            pump = new Pump(process.getInputStream());
+            stdout = new BufferedReader(new InputStreamReader(pump));
+        }
+
+        pump.setDeadline((timeout > 0) ? System.currentTimeMillis() + timeout : 0);
+        try {
+            return readResult(id, commands, listener, transfer, started);
+        }
+        catch (InterruptedIOException e) {
+            // the command hangs, so the shell can't be used any more
+            destroy();
+            if (Thread.interrupted()) {
+                throw new InterruptedException(e.toString());
+            }
+            throw new TimeoutException("No result after " + timeout + " ms");
+        }
+        catch (IOException e) {
+            if (process != null) {
+                destroy();
+            }
+            throw e;
+        }
+    }
+
+    private int readResult(int id, String[] commands, LineListener listener, ShellExec.Transfer transfer,
+                           boolean started) throws IOException, InterruptedException {
+        // send everything in one write
+        String marker = MARKER + id + ":";
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            script.append(command).append('\n');
+        }
+        script.append("echo \"").append(marker).append("$?\"\n");
+        byte[] bytes = script.toString().getBytes();
+        if (bytes.length <= PIPE_SIZE) {
+            stdin.write(bytes);
+            stdin.flush();
+        }
+        else {
+            writeInBackground(stdin, bytes);
+        }
+
+        if (transfer != null) {
+            transfer.run();
+        }
+
+        String line;
+        while ((line = stdout.readLine()) != null) {
+            int pos = line.indexOf(marker);
+            if (pos < 0) {
+                if (!listener.onLine(id, line)) {
+                    // the caller has what it needs, the rest goes down with the shell
+                    destroy();
+                    return 0;
+                }
+                continue;
+            }
+            if (pos > 0) {
+                // the last line of the output had no line break
+                listener.onLine(id, line.substring(0, pos));
+            }
+            try {
+                return Integer.parseInt(line.substring(pos + marker.length()).trim());
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // the shell is gone, e.g. because a command called exit
+        int exitCode = process.waitFor();
+        destroy();
+        if (started && shell.equals("su") && exitCode != 0) {
+            throw new AccessDeniedException("su exited with " + exitCode);
+        }
+        throw new IOException("Shell exited with " + exitCode);
+    }
+
+    /**
+     * Writes a big script while the output is read. Otherwise the shell stops reading
+     * the script as soon as the output pipe is full, and both sides wait forever.
+     */
+    private static void writeInBackground(final OutputStream stdin, final byte[] script) {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stdin.write(script);
+                    stdin.flush();
+                } catch (IOException e) {
+                    // the shell is gone, the reader will notice
+                }
+            }
+        }, "ProcessTransport-stdin");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Kills the shell without waiting for the running command, the command fails.
+     */
+    void abort() {
+        Process p = process;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+
+    @Override
+    public synchronized Object getSession() {
+        return process;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (process != null) {
+            try {
+                stdin.write("exit\n".getBytes());
+                stdin.flush();
+            } catch (IOException e) {
+                // already gone
+            }
+            destroy();
+        }
+    }
+
+    private void destroy() {
+        process.destroy();
+        pump.close();
+        process = null;
+        stdin = null;
+        stdout = null;
+        pump = null;
+    }
+
+    /**
+     * Reads the pipe in its own thread, so a read can give up at a deadline.
+     *
+     * If a command hangs then killing the shell isn't enough: a child process of the
+     * shell still holds the pipe open and a read would block until that child ends.
+     */
+    private static class Pump extends InputStream implements Runnable {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int head;
+        private int count;
+        private boolean eof;
+        private boolean closed;
+        private IOException error;
+        private long deadline;
+
+        Pump(InputStream in) {
+            this.in = in;
+            Thread thread = new Thread(this, "ProcessTransport");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * @param deadline Time in ms (see System.currentTimeMillis()), or 0 to wait forever.
+         */
+        synchronized void setDeadline(long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            try {
+                int len;
+                while ((len = in.read(chunk)) >= 0) {
+                    synchronized (this) {
+                        int off = 0;
+                        while (off < len) {
+                            while (count == buffer.length && !closed) {
+                                wait();
+                            }
+                            if (closed) {
+                                return;
+                            }
+                            int tail = (head + count) % buffer.length;
+                            int n = Math.min(len - off, Math.min(buffer.length - count, buffer.length - tail));
+                            System.arraycopy(chunk, off, buffer, tail, n);
+                            count += n;
+                            off += n;
+                            notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e;
+                }
+            } catch (InterruptedException e) {
+                // the shell is gone anyway
+            } finally {
+                synchronized (this) {
+                    eof = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (count == 0 && !eof && !closed) {
+                long remaining = (deadline > 0) ? deadline - System.currentTimeMillis() : 0;
+                if (deadline > 0 && remaining <= 0) {
+                    throw new InterruptedIOException("Deadline reached");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.toString());
+                }
+            }
+            if (count == 0) {
+                if (error != null) {
+                    throw error;
+                }
+                return -1;
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - head));
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
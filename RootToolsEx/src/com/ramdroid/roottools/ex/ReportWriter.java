@@ -0,0 +1,266 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the {@link ErrorReport} file.
+ *
+ * The file channel stays open for the whole report. Everything is collected in one
+ * direct buffer and written in large blocks; lines are encoded as UTF-8 straight into
+ * that buffer, so writing a line doesn't allocate a byte array. The file is synced
+ * once when the writer is closed.
+ *
+ * When the report is compressed the lines are encoded into a staging buffer that is
+ * fed to the compressor, which in turn fills the block buffer.
+ */
+class ReportWriter extends OutputStream {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int STAGING_SIZE = 8 * 1024;
+
+    private final FileOutputStream file;
+    private final FileChannel channel;
+    private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final GZIPOutputStream compressor;
+    private final ByteBuffer staging;
+    private boolean closed;
+
+    /**
+     * @param path The report file, it is replaced if it exists.
+     * @param compress Write the report in gzip format.
+     */
+    public ReportWriter(File path, boolean compress) throws IOException {
+        file = new FileOutputStream(path);
+        channel = file.getChannel();
+        if (compress) {
+            compressor = new GZIPOutputStream(new BlockSink(), STAGING_SIZE);
+            staging = ByteBuffer.allocate(STAGING_SIZE);
+        }
+        else {
+            compressor = null;
+            staging = null;
+        }
+    }
+
+    /**
+     * Encodes one line and adds a line break.
+     */
+    public void writeLine(CharSequence line) throws IOException {
+        ByteBuffer target = (compressor != null) ? staging : block;
+        CharBuffer in = CharBuffer.wrap(line);
+        encoder.reset();
+        CoderResult result = encoder.encode(in, target, true);
+        while (result.isOverflow()) {
+            spill(target);
+            result = encoder.encode(in, target, true);
+        }
+        while (encoder.flush(target).isOverflow()) {
+            spill(target);
+        }
+        if (!target.hasRemaining()) {
+            spill(target);
+        }
+        target.put((byte) '\n');
+        if (!target.hasRemaining()) {
+            spill(target);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (compressor != null) {
+            spill(staging);
+            compressor.write(b);
+        }
+        else {
+            put(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (compressor != null) {
+            spill(staging);
+            compressor.write(b, off, len);
+        }
+        else {
+            put(b, off, len);
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the file. It is only synced on close().
+     */
+    @Override
+    public void flush() throws IOException {
+        if (compressor != null) {
+            spill(staging);
+            compressor.flush();
+        }
+        drain();
+    }
+
+    /**
+     * Writes the rest of the report, syncs the file and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (compressor != null) {
+                spill(staging);
+                compressor.finish();
+            }
+            drain();
+            channel.force(true);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private void spill(ByteBuffer target) throws IOException {
+        if (target == block) {
+            drain();
+        }
+        else if (staging.position() > 0) {
+            compressor.write(staging.array(), 0, staging.position());
+            staging.clear();
+        }
+    }
+
+    private void put(int b) throws IOException {
+        block.put((byte) b);
+        if (!block.hasRemaining()) {
+            drain();
+        }
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, block.remaining());
+            block.put(b, off, count);
+            off += count;
+            len -= count;
+            if (!block.hasRemaining()) {
+                drain();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        block.flip();
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        block.clear();
+    }
+
+    /**
+     * Writes lines into a stage of the report pipeline, e.g. from the log merger or the
+     * log filter. If the stage is the {@link ReportWriter} itself the lines are encoded
+     * straight into its block buffer. Otherwise they are encoded as UTF-8 into one byte
+     * array that is reused for every line.
+     */
+    static class LineOutput {
+
+        private final OutputStream out;
+        private final ReportWriter writer;
+        private final CharsetEncoder encoder;
+        private final ByteBuffer buffer;
+
+        LineOutput(OutputStream out) {
+            this.out = out;
+            this.writer = (out instanceof ReportWriter) ? (ReportWriter) out : null;
+            if (writer == null) {
+                encoder = Charset.forName("UTF-8").newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                buffer = ByteBuffer.allocate(STAGING_SIZE);
+            }
+            else {
+                encoder = null;
+                buffer = null;
+            }
+        }
+
+        /**
+         * Encodes one line and adds a line break.
+         */
+        void writeLine(CharSequence line) throws IOException {
+            if (writer != null) {
+                writer.writeLine(line);
+                return;
+            }
+            CharBuffer in = CharBuffer.wrap(line);
+            encoder.reset();
+            CoderResult result = encoder.encode(in, buffer, true);
+            while (result.isOverflow()) {
+                spill();
+                result = encoder.encode(in, buffer, true);
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                spill();
+            }
+            if (!buffer.hasRemaining()) {
+                spill();
+            }
+            buffer.put((byte) '\n');
+            spill();
+        }
+
+        private void spill() throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Receives the output of the compressor.
+     */
+    private class BlockSink extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            put(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            put(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * APIs to read and write files that are only accessible with root.
+ *
+ * The data is not passed through the shell output line by line. Instead a FIFO is created
+ * in the cache directory of the app and the root shell copies the file into or out of
+ * the FIFO while we stream the data in large chunks on our side. This is binary-safe and
+ * the pipe takes care of the flow control.
+ *
+ * The {@link RootFiles} class makes sure that all calls to a shell are not
+ * executed in the UI thread.
+ */
+public class RootFiles {
+
+    private static final int MODE_READ      = 1;
+    private static final int MODE_WRITE     = 2;
+
+    private static final int CHUNK_SIZE     = 64 * 1024;
+
+    /**
+     * Reads a file with root access.
+     *
+     * @param context Context of the caller, used to find the cache directory
+     * @param path Path of the file to read
+     * @param sink Receives the content of the file. The stream is not closed.
+     * @param listener returns the error code when job is finished
+     */
+    public static void read(Context context, String path, OutputStream sink, ErrorCode.OutputListener listener) {
+        new Worker(context, MODE_READ, path, sink, null, listener).execute();
+    }
+
+    /**
+     * Writes a file with root access. An existing file is replaced only after all data
+     * was written, and it keeps its mode and owner.
+     *
+     * @param context Context of the caller, used to find the cache directory
+     * @param path Path of the file to write
+     * @param source Provides the new content of the file. The stream is not closed.
+     * @param listener returns the error code when job is finished
+     */
+    public static void write(Context context, String path, InputStream source, ErrorCode.OutputListener listener) {
+        new Worker(context, MODE_WRITE, path, null, source, listener).execute();
+    }
+
+    /**
+     * Blocking shell commands that are doing all the hard work.
+     * They are called by the {@link Worker} to avoid blocking the UI thread.
+     */
+    static class Internal {
+
+        private static final AtomicInteger fifoId = new AtomicInteger();
+        private static final Random random = new Random();
+        private static final int TEMP_TRIES = 3;
+
+        // moves the new file over the target and keeps mode and owner of the old one
+        private static final PreparedCommand REPLACE = new PreparedCommand("rtx_replace",
+                "[ -e \"$2\" ] && { busybox chmod $(busybox stat -c %a \"$2\") \"$1\"; "
+                        + "busybox chown $(busybox stat -c %u:%g \"$2\") \"$1\"; }; "
+                        + "busybox mv -f \"$1\" \"$2\"");
+
+        public static int read(ShellExec exec, File fifoDir, String path, final OutputStream sink) {
+            final String fifo = createFifo(exec, fifoDir);
+            if (fifo == null) {
+                return ErrorCode.COMMAND_FAILED;
+            }
+
+            // the redirection opens the FIFO even if the file is missing, so we never block forever
+            int errorCode = exec.runWhile(new ShellExec.Transfer() {
+                @Override
+                public void run() throws IOException {
+                    InputStream in;
+                    try {
+                        in = new FileInputStream(fifo);
+                    }
+                    catch (IOException e) {
+                        release(fifo, true);
+                        throw e;
+                    }
+                    try {
+                        byte[] chunk = new byte[CHUNK_SIZE];
+                        int count;
+                        while ((count = in.read(chunk)) >= 0) {
+                            sink.write(chunk, 0, count);
+                        }
+                        sink.flush();
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+            }, "cat " + PreparedCommand.quote(path) + " > " + PreparedCommand.quote(fifo));
+
+            remove(exec, fifo);
+            return errorCode;
+        }
+
+        /**
+         * The data goes into a temporary file next to the target first. Only when all of it
+         * arrived the temporary file replaces the target, so a failed transfer never leaves
+         * a half-written file behind.
+         */
+        public static int write(ShellExec exec, File fifoDir, String path, final InputStream source) {
+            final String fifo = createFifo(exec, fifoDir);
+            if (fifo == null) {
+                return ErrorCode.COMMAND_FAILED;
+            }
+            final String tmp = createTemp(exec, path);
+            if (tmp == null) {
+                remove(exec, fifo);
+                return ErrorCode.COMMAND_FAILED;
+            }
+
+            final boolean[] transferred = new boolean[1];
+
+            // if the temporary file can't be opened we still need a reader on the FIFO
+            int errorCode = exec.runWhile(new ShellExec.Transfer() {
+                @Override
+                public void run() throws IOException {
+                    OutputStream out;
+                    try {
+                        out = new FileOutputStream(fifo);
+                    }
+                    catch (IOException e) {
+                        release(fifo, false);
+                        throw e;
+                    }
+                    try {
+                        byte[] chunk = new byte[CHUNK_SIZE];
+                        int count;
+                        while ((count = source.read(chunk)) >= 0) {
+                            out.write(chunk, 0, count);
+                        }
+                    }
+                    finally {
+                        out.close();
+                    }
+                    transferred[0] = true;
+                }
+            }, "cat " + PreparedCommand.quote(fifo) + " > " + PreparedCommand.quote(tmp) + " || (cat " + PreparedCommand.quote(fifo) + " > /dev/null; exit 1)");
+
+            // closing the FIFO looks like a normal end to the shell, so check our side, too
+            if (errorCode == ErrorCode.NONE && transferred[0]) {
+                LineStore output = exec.output;
+                errorCode = exec.run(REPLACE, tmp, path);
+                if (errorCode != ErrorCode.NONE) {
+                    output = exec.output;
+                }
+                exec.output = output;
+            }
+            else {
+                if (errorCode == ErrorCode.NONE) {
+                    errorCode = ErrorCode.COMMAND_FAILED;
+                }
+                remove(exec, tmp);
+            }
+
+            remove(exec, fifo);
+            return errorCode;
+        }
+
+        private static String createFifo(ShellExec exec, File fifoDir) {
+            String fifo = new File(fifoDir, "roottoolsex-" + fifoId.incrementAndGet() + ".fifo").getPath();
+            int errorCode = exec.run(
+                    "rm -f " + PreparedCommand.quote(fifo),
+                    "busybox mkfifo " + PreparedCommand.quote(fifo),
+                    "chmod 666 " + PreparedCommand.quote(fifo));
+            return (errorCode == ErrorCode.NONE) ? fifo : null;
+        }
+
+        /**
+         * Creates an empty temporary file in the directory of the target. The name is unique
+         * and an existing file is never used, so parallel writers and files of the user
+         * are safe.
+         *
+         * @return Path of the new file, or null if it couldn't be created.
+         */
+        private static String createTemp(ShellExec exec, String path) {
+            File target = new File(path);
+            for (int i = 0; i < TEMP_TRIES; ++i) {
+                String name = "." + target.getName() + "." + fifoId.incrementAndGet() + "-"
+                        + Integer.toHexString(random.nextInt()) + ".tmp";
+                String tmp = new File(target.getParent(), name).getPath();
+                // with noclobber the redirection fails if the file exists
+                if (exec.run("(set -C; : > " + PreparedCommand.quote(tmp) + ")") == ErrorCode.NONE) {
+                    return tmp;
+                }
+            }
+            return null;
+        }
+
+        private static void remove(ShellExec exec, String file) {
+            LineStore output = exec.output;
+            exec.run("rm -f " + PreparedCommand.quote(file));
+            exec.output = output;
+        }
+
+        /**
+         * Opening our end of the FIFO failed with an exception, so the command in the shell
+         * waits forever for its open() to return. Open the other end from a separate root
+         * shell so the command finishes and the shared shell can be used again.
+         *
+         * This doesn't help if our open() blocks because the shell never opens its end,
+         * e.g. when the shell is stuck in an earlier command. Then the transfer hangs, too.
+         *
+         * @param fifo Path of the FIFO
+         * @param reader true if we wanted to read from the FIFO
+         */
+        private static void release(String fifo, boolean reader) {
+            String command = reader
+                    ? "cat " + PreparedCommand.quote(fifo) + " > /dev/null\n"
+                    : ": > " + PreparedCommand.quote(fifo) + "\n";
+            Process process = null;
+            try {
+                process = new ProcessBuilder("su").redirectErrorStream(true).start();
+                OutputStream stdin = process.getOutputStream();
+                stdin.write(command.getBytes());
+                stdin.write("exit\n".getBytes());
+                stdin.close();
+                InputStream in = process.getInputStream();
+                while (in.read() >= 0) {
+                    // drop the output
+                }
+                process.waitFor();
+            } catch (IOException e) {
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, 0, 0, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Worker to execute all shell commands in a separate thread.
+     */
+    private static class Worker extends AsyncTask<Integer, Void, Integer> {
+
+        private final File fifoDir;
+        private final int mode;
+        private final String path;
+        private final OutputStream sink;
+        private final InputStream source;
+        private final ErrorCode.OutputListener listener;
+        private ShellExec exec;
+
+        public Worker(Context context, int mode, String path, OutputStream sink, InputStream source, ErrorCode.OutputListener listener) {
+            this.fifoDir = context.getCacheDir();
+            this.mode = mode;
+            this.path = path;
+            this.sink = sink;
+            this.source = source;
+            this.listener = listener;
+        }
+
+        @Override
+        protected Integer doInBackground(Integer... flags) {
+            int errorCode;
+            exec = new ShellExec(true);
+            if (mode == MODE_READ) {
+                errorCode = Internal.read(exec, fifoDir, path, sink);
+            }
+            else {
+                errorCode = Internal.write(exec, fifoDir, path, source);
+            }
+            exec.destroy();
+            return errorCode;
+        }
+
+        protected void onPostExecute(Integer errorCode) {
+            if (listener != null) {
+                if  (exec.output == null) {
+                    exec.output = new LineStore();
+                }
+                listener.onResult(errorCode, exec.output);
+            }
+        }
+    }
+}
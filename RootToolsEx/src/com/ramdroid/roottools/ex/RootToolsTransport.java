@@ -0,0 +1,110 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import com.stericson.RootTools.RootTools;
+import com.stericson.RootTools.exceptions.RootDeniedException;
+import com.stericson.RootTools.execution.Command;
+import com.stericson.RootTools.execution.Shell;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs commands in the shared shells of RootTools.
+ */
+class RootToolsTransport implements ShellTransport {
+
+    private final boolean useRoot;
+    private Shell shell;
+
+    public RootToolsTransport(boolean useRoot) {
+        this.useRoot = useRoot;
+    }
+
+    @Override
+    public int execute(int id, String[] commands, LineListener listener, ShellExec.Transfer transfer,
+                       int timeout) throws IOException, InterruptedException, TimeoutException {
+        LineCommand cmd = (timeout > 0)
+                ? new LineCommand(id, timeout, commands, listener)
+                : new LineCommand(id, commands, listener);
+
+        try {
+            shell = RootTools.getShell(useRoot);
+        } catch (RootDeniedException e) {
+            throw new AccessDeniedException(e.toString());
+        }
+        shell.add(cmd);
+        if (transfer != null) {
+            transfer.run();
+        }
+        int exitCode = cmd.exitCode();
+        if (timeout > 0 && !cmd.finished) {
+            // RootTools gave up on the command and closed the shell
+            throw new TimeoutException("No result after " + timeout + " ms");
+        }
+        return exitCode;
+    }
+
+    @Override
+    public Object getSession() {
+        // RootTools may have replaced the shell since, see ShellExec.run(PreparedCommand...)
+        return shell;
+    }
+
+    /**
+     * Passes the output to the listener and remembers if the command finished normally.
+     */
+    private static class LineCommand extends Command {
+
+        private final LineListener listener;
+        private boolean stopped;
+        volatile boolean finished;
+
+        LineCommand(int id, String[] commands, LineListener listener) {
+            super(id, commands);
+            this.listener = listener;
+        }
+
+        LineCommand(int id, int timeout, String[] commands, LineListener listener) {
+            super(id, timeout, commands);
+            this.listener = listener;
+        }
+
+        @Override
+        public void output(int id, String line) {
+            // the shared shell can't be stopped, so the rest is just dropped
+            if (!stopped && !listener.onLine(id, line)) {
+                stopped = true;
+            }
+        }
+
+        @Override
+        public void commandFinished(int id) {
+            finished = true;
+            super.commandFinished(id);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (shell != null) {
+            shell.close();
+            shell = null;
+        }
+    }
+}
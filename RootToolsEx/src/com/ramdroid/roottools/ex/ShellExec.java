@@ -18,20 +18,31 @@ package com.ramdroid.roottools.ex;
 
 import android.nfc.Tag;
 import android.os.AsyncTask;
-import android.util.Log;
-import com.stericson.RootTools.exceptions.RootDeniedException;
-import com.stericson.RootTools.execution.Command;
 import com.stericson.RootTools.RootTools;
-import com.stericson.RootTools.execution.Shell;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Wrapper around the new shell interface from RootTools.
  *
+ * The commands are sent through a {@link ShellTransport}. By default this is the shared
+ * RootTools shell, non-root commands can use a plain sh process instead
+ * (see {@link AsyncShell#usePlainShell(boolean)}).
+ *
  * Calls to {@link ShellExec} are blocking the current thread.
  * Only for internal use in {@link AsyncShell} and {@link ShellService}
  */
@@ -47,65 +58,561 @@ class ShellExec {
     public static final int API_EX_APPFITSONPARTITION       = 102;
     public static final int API_EX_MOVEAPPEX                = 103;
 
-    public ArrayList<String> output;
+    public LineStore output;
 
-    private Shell rootShell;
+    private final ShellTransport transport;
     private boolean useRoot;
 
-    private static int commandId = 0;
+    private static final AtomicInteger nextCommandId = new AtomicInteger();
+    private static volatile boolean plainShell = false;
+    private static volatile boolean frameAligned = false;
+    private static volatile boolean adaptiveTimeouts = false;
 
-    private static final String TAG = "ShellExec";
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ShellExec-hedge");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final int RAW_CHUNK_SIZE = 64 * 1024;
 
     public ShellExec(boolean useRoot) {
         this.useRoot = useRoot;
+        this.transport = (!useRoot && plainShell) ? new ProcessTransport(false) : new RootToolsTransport(useRoot);
+    }
+
+    /**
+     * Uses a custom transport, e.g. a {@link ProcessTransport} running /bin/sh on a Linux box.
+     */
+    public ShellExec(boolean useRoot, ShellTransport transport) {
+        this.useRoot = useRoot;
+        this.transport = transport;
+    }
+
+    static void setPlainShell(boolean enabled) {
+        plainShell = enabled;
+    }
+
+    static void setFrameAligned(boolean enabled) {
+        frameAligned = enabled;
+    }
+
+    static void setAdaptiveTimeouts(boolean enabled) {
+        adaptiveTimeouts = enabled;
     }
 
     public int run(String... command) {
-        int errorCode = ErrorCode.COMMAND_FAILED;
-        commandId += 1;
-        output = new ArrayList<String>();
-        Log.d(TAG, "Cmd " + commandId + ": " + command.toString());
-        Command cmd = new Command(commandId, command) {
+        if (command.length == 1 && FastPath.isEnabledFor(useRoot)) {
+            // maybe we can do this without a shell
+            LineStore fastOutput = new LineStore();
+            int errorCode = FastPath.resolve(command[0], fastOutput);
+            if (errorCode != FastPath.NOT_RESOLVED) {
+                output = fastOutput;
+                return errorCode;
+            }
+        }
+        return runWhile(null, command);
+    }
+
+    /**
+     * Runs the commands of the builder. If the builder has a filter or a result limit
+     * then only matching lines are stored, and the command is stopped as soon as
+     * enough lines were found.
+     */
+    public int run(CommandBuilder builder) {
+        String[] commands = builder.commands.toArray(new String[builder.commands.size()]);
+        if (commands.length == 1 && FastPath.isEnabledFor(useRoot)) {
+            LineStore fastOutput = new LineStore();
+            int errorCode = FastPath.resolve(commands[0], fastOutput);
+            if (errorCode != FastPath.NOT_RESOLVED && !builder.hasQuery()) {
+                output = fastOutput;
+                return errorCode;
+            }
+            if (errorCode != FastPath.NOT_RESOLVED) {
+                output = new LineStore();
+                for (int i = 0; i < fastOutput.size() && !builder.isComplete(output.size()); ++i) {
+                    String line = fastOutput.get(i);
+                    if (builder.accept(line)) {
+                        output.add(line);
+                    }
+                }
+                return errorCode;
+            }
+        }
+        return execute(null, builder, builder.getShellCommands());
+    }
+
+    /**
+     * Runs a prepared command. The shell function is defined with the first call
+     * in a shell, after that only the call itself is sent.
+     *
+     * @param command The prepared command
+     * @param args The arguments, they are quoted
+     * @return The error code
+     */
+    public int run(PreparedCommand command, String... args) {
+        String call = command.invoke(args);
+        if (command.isInstalledIn(transport.getSession())) {
+            int errorCode = runWhile(null, call);
+            if (!command.isMissing(errorCode, output)) {
+                return errorCode;
+            }
+            // the shell was replaced behind our back, so define the function again
+        }
+        int errorCode = runWhile(null, command.getDefinition(), call);
+        if (errorCode == ErrorCode.NONE || errorCode == ErrorCode.COMMAND_FAILED) {
+            command.setInstalledIn(transport.getSession());
+        }
+        return errorCode;
+    }
+
+    /**
+     * Runs a command and executes a transfer in the current thread while the command
+     * is still running in the shell, e.g. to feed or drain a FIFO that the command uses.
+     *
+     * @param transfer Executed after the command was started, or null
+     * @param command The commands to execute
+     * @return The error code
+     */
+    public int runWhile(Transfer transfer, String... command) {
+        return execute(transfer, null, command);
+    }
 
+    private int execute(Transfer transfer, CommandBuilder query, String... command) {
+        int commandId = nextCommandId.incrementAndGet();
+        Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_START, commandId, command.length, command);
+
+        // a command that changes something must not be killed halfway, e.g. while moving
+        // a big APK, so only idempotent commands get an adaptive deadline
+        boolean adaptive = adaptiveTimeouts && transfer == null && query != null && query.idempotent;
+        LatencyStats stats = adaptive ? LatencyStats.get(LatencyStats.classify(command)) : null;
+        int timeout = (stats != null) ? stats.getTimeout() : 0;
+        long hedgeDelay = (stats != null) ? stats.getHedgeDelay() : 0;
+
+        Attempt attempt;
+        if (hedgeDelay > 0) {
+            attempt = runHedged(commandId, command, query, timeout, hedgeDelay);
+        }
+        else {
+            attempt = new Attempt(transport, commandId, command, query, transfer, timeout, null);
+            attempt.run();
+        }
+        output = attempt.output;
+        if (stats != null && attempt.completed) {
+            stats.record(attempt.elapsed);
+        }
+        else if (stats != null && attempt.errorCode == ErrorCode.TIMEOUT) {
+            stats.recordTimeout(attempt.elapsed);
+        }
+        return attempt.errorCode;
+    }
+
+    /**
+     * Runs the command in our shell, and if it takes longer than usual the same command
+     * is started in a fresh shell, too. The first one that finishes wins. Only for
+     * commands that can safely run twice.
+     *
+     * Nearly all of the slow calls come from a wedged shell, so the second try is usually
+     * much faster than waiting for the timeout. Our try runs in the calling thread, only
+     * the second one runs in the pool. If it wins it interrupts our try.
+     *
+     * The second try collects all lines, the query filters them afterwards in the calling
+     * thread. So the filter of the caller is never called by two threads at once.
+     */
+    private Attempt runHedged(final int commandId, final String[] command, CommandBuilder query, final int timeout,
+                              final long hedgeDelay) {
+        final Object signal = new Object();
+        final Thread caller = Thread.currentThread();
+        final Attempt primary = new Attempt(transport, commandId, command, query, null, timeout, signal);
+        final Attempt[] hedge = new Attempt[1];
+        final boolean[] interrupted = new boolean[1];
+
+        hedgeExecutor.execute(new Runnable() {
             @Override
-            public void output(int id, String line) {
-                Log.d(TAG, "ID " + id + ": " + line);
-                if (id == commandId && line != null && line.length() > 0) {
+            public void run() {
+                ProcessTransport fresh;
+                synchronized (signal) {
+                    try {
+                        long end = System.currentTimeMillis() + hedgeDelay;
+                        long remaining = hedgeDelay;
+                        while (!primary.done && remaining > 0) {
+                            signal.wait(remaining);
+                            remaining = end - System.currentTimeMillis();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (primary.done) {
+                        return;
+                    }
+                    Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_HEDGE, commandId, hedgeDelay, command);
+                    fresh = new ProcessTransport(useRoot);
+                    hedge[0] = new Attempt(fresh, commandId, command, null, null, timeout, signal);
+                }
+
+                hedge[0].run();
+                try {
+                    fresh.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+
+                synchronized (signal) {
+                    if (hedge[0].completed && !primary.done) {
+                        // stop waiting for the wedged shell
+                        primary.abandoned = true;
+                        interrupted[0] = true;
+                        caller.interrupt();
+                        if (primary.transport instanceof ProcessTransport) {
+                            ((ProcessTransport) primary.transport).abort();
+                        }
+                    }
+                }
+            }
+        });
+
+        primary.run();
+
+        Attempt second;
+        synchronized (signal) {
+            if (interrupted[0]) {
+                // the interrupt came from the second try, not from our caller
+                Thread.interrupted();
+            }
+            second = hedge[0];
+            if (second == null || primary.completed) {
+                if (second != null && !second.done) {
+                    ((ProcessTransport) second.transport).abort();
+                }
+                return primary;
+            }
+            try {
+                while (!second.done) {
+                    signal.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ((ProcessTransport) second.transport).abort();
+                return primary;
+            }
+            if (!second.completed) {
+                return primary;
+            }
+            primary.abandoned = true;
+        }
+        if (query != null) {
+            second.applyQuery(query);
+        }
+        return second;
+    }
+
+    /**
+     * One try to run the commands in a transport.
+     */
+    private static class Attempt implements Runnable {
+
+        final ShellTransport transport;
+        LineStore output = new LineStore();
+        int errorCode = ErrorCode.COMMAND_FAILED;
+        boolean completed;
+        boolean done;
+        long elapsed;
+        // the other try won, late lines are dropped
+        volatile boolean abandoned;
+
+        private final int id;
+        private final String[] commands;
+        private final CommandBuilder query;
+        private final Transfer transfer;
+        private final int timeout;
+        private final Object signal;
+
+        Attempt(ShellTransport transport, int id, String[] commands, CommandBuilder query, Transfer transfer,
+                int timeout, Object signal) {
+            this.transport = transport;
+            this.id = id;
+            this.commands = commands;
+            this.query = query;
+            this.transfer = transfer;
+            this.timeout = timeout;
+            this.signal = signal;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            ShellTransport.LineListener listener = new ShellTransport.LineListener() {
+
+                @Override
+                public boolean onLine(int id, String line) {
+                    Tracer.traceLine(Tracer.LEVEL_VERBOSE, Tracer.EVENT_CMD_OUTPUT, id, line);
+                    if (id != Attempt.this.id || line == null || line.length() == 0) {
+                        return true;
+                    }
+                    if (abandoned) {
+                        return false;
+                    }
+                    if (query == null) {
+                        output.add(line);
+                        return true;
+                    }
+                    if (query.accept(line)) {
+                        output.add(line);
+                    }
+                    return !query.isComplete(output.size());
+                }
+            };
+
+            int result = ErrorCode.COMMAND_FAILED;
+            boolean finished = false;
+            try {
+                int exitCode = transport.execute(id, commands, listener, transfer, timeout);
+                Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_EXIT, id, exitCode, null);
+                finished = true;
+                if (exitCode == 0) {
+                    result = ErrorCode.NONE;
+                }
+            } catch (ShellTransport.AccessDeniedException e) {
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, id, 0, e);
+                output.add(e.toString());
+                result = ErrorCode.NO_ROOT_ACCESS;
+            } catch (IOException e) {
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, id, 0, e);
+                output.add(e.toString());
+            } catch (InterruptedException e) {
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, id, 0, e);
+                output.add(e.toString());
+            } catch (TimeoutException e) {
+                Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, id, 0, e);
+                output.add(e.toString());
+                result = ErrorCode.TIMEOUT;
+            }
+
+            if (signal == null) {
+                finish(result, finished, start);
+                return;
+            }
+            synchronized (signal) {
+                finish(result, finished, start);
+                signal.notifyAll();
+            }
+        }
+
+        private void finish(int result, boolean finished, long start) {
+            errorCode = result;
+            completed = finished;
+            elapsed = (System.nanoTime() - start) / 1000000;
+            done = true;
+        }
+
+        /**
+         * Keeps only the lines that the query accepts, for a try that ran without it.
+         */
+        void applyQuery(CommandBuilder query) {
+            LineStore all = output;
+            output = new LineStore();
+            for (int i = 0; i < all.size() && !query.isComplete(output.size()); ++i) {
+                String line = all.get(i);
+                if (query.accept(line)) {
                     output.add(line);
                 }
             }
-        };
+        }
+    }
+
+    /**
+     * Runs the commands in a new shell process and copies stdout as raw bytes into the
+     * sink of the {@link CommandBuilder}. The shared RootTools shell can't be used here
+     * because it decodes and splits the output into lines.
+     *
+     * Lines from stderr are collected in {@link #output}.
+     */
+    public int runRaw(CommandBuilder builder) {
+        int errorCode = ErrorCode.COMMAND_FAILED;
+        int commandId = nextCommandId.incrementAndGet();
+        output = new LineStore();
+        Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_START, commandId, builder.commands.size(), builder.commands);
 
+        Process process = null;
+        ErrorDrain drain = null;
         try {
-            rootShell = RootTools.getShell(useRoot);
-            int exitCode = rootShell.add(cmd).exitCode();
-            if (exitCode == 0) {
+            process = new ProcessBuilder(useRoot ? "su" : "sh").start();
+            drain = new ErrorDrain(process.getErrorStream());
+            drain.start();
+
+            // the script is written while the output is read, otherwise both sides block
+            // when the script doesn't fit into the pipe and the first commands print a lot
+            StringBuilder script = new StringBuilder();
+            for (String command : builder.commands) {
+                script.append(command).append('\n');
+            }
+            script.append("exit\n");
+            ScriptWriter writer = new ScriptWriter(process.getOutputStream(), script.toString().getBytes());
+            writer.start();
+
+            boolean complete = copyRaw(process.getInputStream(), builder);
+            int exitCode = process.waitFor();
+            Tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CMD_EXIT, commandId, exitCode, null);
+            if (!complete) {
+                errorCode = ErrorCode.BUFFER_OVERFLOW;
+            }
+            else if (exitCode == 0) {
                 errorCode = ErrorCode.NONE;
             }
         } catch (IOException e) {
+            Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, commandId, 0, e);
             output.add(e.toString());
         } catch (InterruptedException e) {
+            Tracer.trace(Tracer.LEVEL_WARN, Tracer.EVENT_CMD_ERROR, commandId, 0, e);
             output.add(e.toString());
-        } catch (TimeoutException e) {
-            output.add(e.toString());
-            errorCode = ErrorCode.TIMEOUT;
-        } catch (RootDeniedException e) {
-            output.add(e.toString());
-            errorCode = ErrorCode.NO_ROOT_ACCESS;
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        if (drain != null) {
+            try {
+                drain.join();
+            } catch (InterruptedException e) {
+                // keep what we got so far
+            }
+            for (String line : drain.lines) {
+                output.add(line);
+            }
         }
         return errorCode;
     }
 
+    /**
+     * Copies the raw output into the sink of the {@link CommandBuilder}.
+     *
+     * @return false if the output didn't fit into the target buffer
+     */
+    private static boolean copyRaw(InputStream in, CommandBuilder builder) throws IOException {
+        boolean complete = true;
+        if (builder.outputChannel instanceof FileChannel) {
+            // let the file channel pull the data directly
+            FileChannel fc = (FileChannel) builder.outputChannel;
+            ReadableByteChannel src = Channels.newChannel(in);
+            long position = fc.position();
+            long count = fc.transferFrom(src, position, RAW_CHUNK_SIZE);
+            if (count > 0) {
+                do {
+                    position += count;
+                } while ((count = fc.transferFrom(src, position, RAW_CHUNK_SIZE)) > 0);
+                fc.position(position);
+                return true;
+            }
+            // nothing was transferred: either there is no output, or the position is behind
+            // the end of the file and transferFrom refuses. The loop below handles both.
+        }
+        if (builder.outputChannel != null) {
+            ReadableByteChannel src = Channels.newChannel(in);
+            ByteBuffer chunk = ByteBuffer.allocate(RAW_CHUNK_SIZE);
+            while (src.read(chunk) >= 0) {
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    builder.outputChannel.write(chunk);
+                }
+                chunk.clear();
+            }
+        }
+        else {
+            byte[] chunk = new byte[RAW_CHUNK_SIZE];
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                if (builder.outputStream != null) {
+                    builder.outputStream.write(chunk, 0, count);
+                }
+                else if (builder.outputBuffer.remaining() >= count) {
+                    builder.outputBuffer.put(chunk, 0, count);
+                }
+                else {
+                    // drop the rest but keep reading so the shell can finish
+                    builder.outputBuffer.put(chunk, 0, builder.outputBuffer.remaining());
+                    complete = false;
+                }
+            }
+            if (builder.outputStream != null) {
+                builder.outputStream.flush();
+            }
+        }
+        return complete;
+    }
+
     public void destroy() {
         try {
-            if (rootShell != null) {
-                rootShell.close();
-            }
+            transport.close();
         } catch (IOException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
         }
     }
 
+    /**
+     * Work that runs in parallel to a shell command.
+     */
+    interface Transfer {
+        void run() throws IOException;
+    }
+
+    /**
+     * Collects stderr of a raw shell process so the process never blocks on a full pipe.
+     */
+    private static class ErrorDrain extends Thread {
+
+        private final InputStream in;
+        final LineStore lines = new LineStore();
+
+        ErrorDrain(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // process was destroyed
+            }
+        }
+    }
+
+    /**
+     * Writes the script of a raw shell process and closes stdin.
+     */
+    private static class ScriptWriter extends Thread {
+
+        private final OutputStream stdin;
+        private final byte[] script;
+
+        ScriptWriter(OutputStream stdin, byte[] script) {
+            super("ShellExec-stdin");
+            this.stdin = stdin;
+            this.script = script;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                stdin.write(script);
+                stdin.close();
+            } catch (IOException e) {
+                // process was destroyed
+            }
+        }
+    }
+
     /**
      * Worker to execute all shell commands in a separate thread.
      */
@@ -116,6 +623,7 @@ class ShellExec {
         private String partition;
         private String target;
         private String[] commands;
+        private CommandBuilder builder;
         private ErrorCode.OutputListener listener;
         private ShellExec exec;
         private boolean useRoot;
@@ -137,6 +645,7 @@ class ShellExec {
             this.api = api;
             this.useRoot = useRoot;
             this.commands = builder.commands.toArray(new String[builder.commands.size()]);
+            this.builder = builder;
             this.listener = listener;
         }
 
@@ -182,7 +691,15 @@ class ShellExec {
                 errorCode = available ? ErrorCode.NONE : ErrorCode.BUSYBOX;
             }
             else if (api == API_SEND) {
-                errorCode = exec.run(commands);
+                if (builder != null && builder.hasRawOutput()) {
+                    errorCode = exec.runRaw(builder);
+                }
+                else if (builder != null) {
+                    errorCode = exec.run(builder);
+                }
+                else {
+                    errorCode = exec.run(commands);
+                }
             }
             else if (api == API_EX_APPEXISTSONPARTITION) {
                 errorCode = AppManager.Internal.appExistsOnPartition(exec, packageName, partition);
@@ -204,12 +721,22 @@ class ShellExec {
             return errorCode;
         }
 
-        protected void onPostExecute(Integer errorCode) {
+        protected void onPostExecute(final Integer errorCode) {
             if (listener != null) {
                 if  (exec.output == null) {
-                    exec.output = new ArrayList<String>();
+                    exec.output = new LineStore();
+                }
+                if (frameAligned) {
+                    FrameDispatcher.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onResult(errorCode, exec.output);
+                        }
+                    });
+                }
+                else {
+                    listener.onResult(errorCode, exec.output);
                 }
-                listener.onResult(errorCode, exec.output);
             }
         }
     }
@@ -16,15 +16,23 @@ package com.ramdroid.roottools.ex;
  limitations under the License.
  */
 
+import android.Manifest;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -32,17 +40,44 @@ import java.util.List;
  *
  * The {@link ShellService} class makes sure that all calls to a shell are not
  * executed in the UI thread.
+ *
+ * Commands that are marked as deferrable in the {@link CommandBuilder} are not run
+ * immediately. They are collected until the batch window closes, the batch is full,
+ * or the device is awake or charging anyway. Then the whole batch runs in a single
+ * shell call while one wake lock is held (needs the WAKE_LOCK permission). Deferred
+ * commands that are still waiting when the service is stopped are dropped.
+ *
+ * Commands can be tagged with a client name, e.g. "ui" or "sync". Each client has its
+ * own queue and the queues take turns (weighted fair queuing), so a client that sends
+ * hundreds of commands doesn't hold up the others. See setClientPolicy() for weights
+ * and limits, and getClientStats() for the time that commands spent in the queue.
  */
 public class ShellService extends Service {
 
     private static final String ACTION_SEND_SHELL_CMD = "com.ramdroid.roottools.ex.SEND_SHELL_CMD";
+    private static final String ACTION_RUN_BATCH = "com.ramdroid.roottools.ex.RUN_BATCH";
 
     private static final String REQUEST_RECEIVER_EXTRA = "ShellServiceRequestReceiverExtra";
     private static final int RESULT_ID_QUOTE = 42;
 
+    private static final long DEFAULT_BATCH_WINDOW = 15 * 60 * 1000;
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private static final String BATCH_MARKER = "--RootToolsEx-batch-";
+
+    private static final FairQueue queue = new FairQueue();
+    private static volatile int laneCount = 1;
+
     private CommandReceiver receiver;
+    private DeviceStateReceiver stateReceiver;
     private ShellExec shellExec;
     private ResultReceiver resultReceiver;
+    private List<Lane> lanes;
+
+    private final List<CommandBuilder> batch = new ArrayList<CommandBuilder>();
+    private long batchWindow;
+    private int batchSize;
+    private PendingIntent batchAlarm;
+    private PowerManager.WakeLock wakeLock;
 
     /**
      * Starts the {@link ShellService} and prepares the result listener.
@@ -58,8 +93,24 @@ public class ShellService extends Service {
      * @param listener Returns the command result.
      */
     public static void start(Context context, boolean useRoot, final ErrorCode.OutputListener listener) {
+        start(context, useRoot, DEFAULT_BATCH_WINDOW, DEFAULT_BATCH_SIZE, listener);
+    }
+
+    /**
+     * Starts the {@link ShellService} with a custom policy for deferrable commands.
+     *
+     * @param context Context of the caller.
+     * @param useRoot True if you need a root shell.
+     * @param batchWindow Maximum time in ms that a deferrable command waits (default is 15 minutes).
+     * @param batchSize Number of deferrable commands that start the batch right away (default is 20).
+     * @param listener Returns the command result.
+     */
+    public static void start(Context context, boolean useRoot, long batchWindow, int batchSize,
+                             final ErrorCode.OutputListener listener) {
         Intent i = new Intent(context, ShellService.class);
         i.putExtra("useRoot", useRoot);
+        i.putExtra("batchWindow", batchWindow);
+        i.putExtra("batchSize", batchSize);
         i.putExtra(REQUEST_RECEIVER_EXTRA, new ResultReceiver(null) {
             @Override
             protected void onReceiveResult(int resultCode, Bundle resultData) {
@@ -114,6 +165,113 @@ public class ShellService extends Service {
         context.sendBroadcast(i);
     }
 
+    /**
+     * Sends a command to the {@link ShellService} on behalf of a client.
+     * Commands of the same client run in the order they were sent.
+     *
+     * @param context Context of the caller.
+     * @param client Name of the client, see {@link #setClientPolicy(String, int, int, int)}.
+     * @param cmd the command to execute in the shell.
+     */
+    public static void send(Context context, String client, String cmd) {
+        Bundle data = new Bundle();
+        data.putString("client", client);
+        data.putString("cmd", cmd);
+        Intent i = new Intent(ACTION_SEND_SHELL_CMD);
+        i.putExtras(data);
+        context.sendBroadcast(i);
+    }
+
+    /**
+     * Sends one or more commands to the {@link ShellService} on behalf of a client.
+     *
+     * @param context Context of the caller.
+     * @param client Name of the client, see {@link #setClientPolicy(String, int, int, int)}.
+     * @param builder the {@link CommandBuilder} object
+     */
+    public static void send(Context context, String client, CommandBuilder builder) {
+        Bundle data = new Bundle();
+        data.putString("client", client);
+        data.putParcelable("builder", builder);
+        Intent i = new Intent(ACTION_SEND_SHELL_CMD);
+        i.putExtras(data);
+        context.sendBroadcast(i);
+    }
+
+    /**
+     * Sets how the commands of a client are scheduled. Commands without a client
+     * belong to the client "default". The policy is kept when the service restarts.
+     *
+     * @param client Name of the client.
+     * @param weight Share of the client compared to the others, 1 by default.
+     * @param maxConcurrent Maximum number of commands of the client that run at the same time, 0 for no limit.
+     * @param ratePerSecond Maximum number of commands of the client per second, 0 for no limit.
+     */
+    public static void setClientPolicy(String client, int weight, int maxConcurrent, int ratePerSecond) {
+        queue.setPolicy(client, weight, maxConcurrent, ratePerSecond);
+    }
+
+    /**
+     * Sets the number of commands that the service runs at the same time, 1 by default.
+     * The first lane uses the shared RootTools shell, every other lane starts a shell
+     * process of its own. Used the next time the service starts.
+     */
+    public static void setLaneCount(int lanes) {
+        laneCount = Math.max(1, lanes);
+    }
+
+    /**
+     * @param client Name of the client.
+     * @return Queue statistics of the client.
+     */
+    public static ClientStats getClientStats(String client) {
+        return queue.getStats(client);
+    }
+
+    /**
+     * @return Queue statistics of all clients that sent commands or have a policy.
+     */
+    public static List<ClientStats> getClientStats() {
+        return queue.getStats();
+    }
+
+    /**
+     * How long the commands of a client had to wait before they were started.
+     */
+    public static class ClientStats {
+
+        public final String client;
+        public int queued;
+        public int running;
+        public long completed;
+        public long totalQueueMs;
+        public long maxQueueMs;
+        /** Median of the recent queue times, -1 if there are too few. */
+        public long p50QueueMs = -1;
+        /** 95th percentile of the recent queue times, -1 if there are too few. */
+        public long p95QueueMs = -1;
+
+        ClientStats(String client) {
+            this.client = client;
+        }
+
+        public long getAverageQueueMs() {
+            long started = completed + running;
+            return (started > 0) ? totalQueueMs / started : 0;
+        }
+    }
+
+    /**
+     * Sends a command to the {@link ShellService} that is not urgent.
+     * It is run together with other deferrable commands later.
+     *
+     * @param context Context of the caller.
+     * @param cmd the command to execute in the shell.
+     */
+    public static void sendDeferred(Context context, String cmd) {
+        send(context, new CommandBuilder().add(cmd).setDeferrable(true));
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;  //To change body of implemented methods use File | Settings | File Templates.
@@ -128,12 +286,39 @@ public class ShellService extends Service {
         boolean useRoot = intent.getBooleanExtra("useRoot", true);
         shellExec = new ShellExec(useRoot);
 
+        // init batching of deferrable commands
+        batchWindow = intent.getLongExtra("batchWindow", DEFAULT_BATCH_WINDOW);
+        batchSize = intent.getIntExtra("batchSize", DEFAULT_BATCH_SIZE);
+        if (checkCallingOrSelfPermission(Manifest.permission.WAKE_LOCK) == PackageManager.PERMISSION_GRANTED) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "RootToolsEx:batch");
+        }
+
         // register intent receiver
         IntentFilter filter = new IntentFilter();
         filter.addAction(ACTION_SEND_SHELL_CMD);
+        filter.addAction(ACTION_RUN_BATCH);
         receiver = new CommandReceiver();
         registerReceiver(receiver, filter);
 
+        // run deferred commands as soon as the device wakes up or is plugged in
+        IntentFilter stateFilter = new IntentFilter();
+        stateFilter.addAction(Intent.ACTION_SCREEN_ON);
+        stateFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+        stateReceiver = new DeviceStateReceiver();
+        registerReceiver(stateReceiver, stateFilter);
+
+        // the lanes take the commands from the client queues
+        if (lanes == null) {
+            lanes = new ArrayList<Lane>();
+            for (int n = 0; n < laneCount; ++n) {
+                // the RootTools shell is shared, so more lanes need their own shell process
+                Lane lane = new Lane((n == 0) ? shellExec : new ShellExec(useRoot, new ProcessTransport(useRoot)));
+                lanes.add(lane);
+                lane.start();
+            }
+        }
+
         return START_STICKY;
     }
 
@@ -141,39 +326,217 @@ public class ShellService extends Service {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(receiver);
+        unregisterReceiver(stateReceiver);
+        synchronized (batch) {
+            batch.clear();
+            cancelBatchAlarm();
+        }
+        queue.clear();
+        if (lanes != null) {
+            for (Lane lane : lanes) {
+                lane.finish();
+                if (lane.exec != shellExec) {
+                    lane.exec.destroy();
+                }
+            }
+            lanes = null;
+        }
         shellExec.destroy();
     }
 
+    private void defer(CommandBuilder builder) {
+        boolean runNow;
+        synchronized (batch) {
+            batch.add(builder);
+            runNow = batch.size() >= batchSize || isAwakeOrCharging();
+            if (!runNow && batch.size() == 1) {
+                // the first command opens the batch window
+                AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+                batchAlarm = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_RUN_BATCH), PendingIntent.FLAG_UPDATE_CURRENT);
+                alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + batchWindow, batchAlarm);
+            }
+        }
+        if (runNow) {
+            runBatch();
+        }
+    }
+
+    private boolean isAwakeOrCharging() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager.isScreenOn()) {
+            return true;
+        }
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void cancelBatchAlarm() {
+        if (batchAlarm != null) {
+            AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(batchAlarm);
+            batchAlarm = null;
+        }
+    }
+
+    /**
+     * Runs all deferred commands in one shell call. A marker with the exit status is
+     * echoed after the commands of each request, so the output can be split again
+     * and each request gets its own result.
+     */
+    private void runBatch() {
+        final List<CommandBuilder> jobs;
+        synchronized (batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            jobs = new ArrayList<CommandBuilder>(batch);
+            batch.clear();
+            cancelBatchAlarm();
+        }
+        if (wakeLock != null) {
+            wakeLock.acquire();
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (shellExec) {
+                        List<String> commands = new ArrayList<String>();
+                        for (int i = 0; i < jobs.size(); ++i) {
+                            commands.addAll(jobs.get(i).commands);
+                            commands.add("echo \"" + BATCH_MARKER + i + " $?\"");
+                        }
+                        int errorCode = shellExec.run(commands.toArray(new String[commands.size()]));
+
+                        int job = 0;
+                        ArrayList<String> output = new ArrayList<String>();
+                        for (String line : shellExec.output) {
+                            int marker = line.indexOf(BATCH_MARKER);
+                            if (marker >= 0 && job < jobs.size()) {
+                                if (marker > 0) {
+                                    // the last output line of the request had no line break
+                                    output.add(line.substring(0, marker));
+                                }
+                                boolean success = line.endsWith(" 0");
+                                sendResult(success ? ErrorCode.NONE : ErrorCode.COMMAND_FAILED, output);
+                                output = new ArrayList<String>();
+                                job += 1;
+                            }
+                            else if (job < jobs.size() && jobs.get(job).accept(line)
+                                    && !jobs.get(job).isComplete(output.size())) {
+                                output.add(line);
+                            }
+                        }
+
+                        // the shell stopped before all requests were done
+                        for (; job < jobs.size(); ++job) {
+                            sendResult(errorCode != ErrorCode.NONE ? errorCode : ErrorCode.COMMAND_FAILED, output);
+                            output = new ArrayList<String>();
+                        }
+                    }
+                }
+                finally {
+                    if (wakeLock != null) {
+                        wakeLock.release();
+                    }
+                }
+            }
+        }).start();
+    }
+
+    private void sendResult(int errorCode, ArrayList<String> output) {
+        if (resultReceiver != null) {
+            Bundle resultData = new Bundle();
+            resultData.putInt("errorCode", errorCode);
+            resultData.putStringArrayList("output", output);
+            resultReceiver.send(RESULT_ID_QUOTE, resultData);
+        }
+    }
+
     private class CommandReceiver extends BroadcastReceiver {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            final Bundle data = intent.getExtras();
-            final String cmd = data.getString("cmd");
-            final CommandBuilder builder = data.getParcelable("builder");
+            if (ACTION_RUN_BATCH.equals(intent.getAction())) {
+                runBatch();
+                return;
+            }
 
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (shellExec) {
+            Bundle data = intent.getExtras();
+            String cmd = data.getString("cmd");
+            CommandBuilder builder = data.getParcelable("builder");
+            if (builder != null && builder.deferrable) {
+                defer(builder);
+                return;
+            }
+            queue.add(data.getString("client"), cmd, builder);
+        }
+    }
+
+    /**
+     * Runs the commands that the {@link FairQueue} hands out, one at a time.
+     */
+    private class Lane extends Thread {
+
+        final ShellExec exec;
+        private volatile boolean running = true;
+
+        Lane(ShellExec exec) {
+            super("ShellService-lane");
+            this.exec = exec;
+            setDaemon(true);
+        }
+
+        void finish() {
+            running = false;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                FairQueue.Request request;
+                try {
+                    request = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    // the service was stopped, the request belongs to the next one
+                    queue.putBack(request);
+                    return;
+                }
+                try {
+                    synchronized (exec) {
                         int errorCode = ErrorCode.NONE;
-                        if (cmd != null) {
-                            shellExec.run(cmd);
+                        if (request.cmd != null) {
+                            errorCode = exec.run(request.cmd);
                         }
-                        else if (builder != null) {
-                            String[] commands = builder.commands.toArray(new String[builder.commands.size()]);
-                            shellExec.run(commands);
+                        else if (request.builder != null) {
+                            errorCode = exec.run(request.builder);
                         }
 
                         if (resultReceiver != null) {
                             Bundle resultData = new Bundle();
                             resultData.putInt("errorCode", errorCode);
-                            resultData.putStringArrayList("output", shellExec.output);
+                            resultData.putStringArrayList("output", new ArrayList<String>(exec.output));
                             resultReceiver.send(RESULT_ID_QUOTE, resultData);
                         }
                     }
                 }
-            }).start();
+                finally {
+                    queue.done(request);
+                }
+            }
+        }
+    }
+
+    private class DeviceStateReceiver extends BroadcastReceiver {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            runBatch();
         }
     }
 }
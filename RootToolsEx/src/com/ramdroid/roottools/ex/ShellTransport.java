@@ -0,0 +1,79 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The shell that {@link ShellExec} sends its commands to.
+ *
+ * {@link RootToolsTransport} uses the shared shells of RootTools. {@link ProcessTransport}
+ * drives its own sh or su process and doesn't need any Android or RootTools classes,
+ * so the engine can also run on a Linux box, e.g. for load tests.
+ */
+interface ShellTransport {
+
+    /**
+     * Receives the output of a command, line by line.
+     */
+    interface LineListener {
+
+        /**
+         * @return false if the rest of the output is not needed. The transport stops the
+         *         command if it can, otherwise it just doesn't deliver any more lines.
+         */
+        boolean onLine(int id, String line);
+    }
+
+    /**
+     * Thrown when root access was denied.
+     */
+    class AccessDeniedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        AccessDeniedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Runs the commands and blocks until they are finished.
+     *
+     * @param id ID of the command, it is passed to the listener
+     * @param commands The commands to execute
+     * @param listener Receives the output
+     * @param transfer Executed after the commands were started, or null
+     * @param timeout Deadline in ms, or 0 for the default of the transport
+     * @return The exit code of the last command
+     * @throws TimeoutException if the commands didn't finish in time
+     */
+    int execute(int id, String[] commands, LineListener listener, ShellExec.Transfer transfer, int timeout)
+            throws IOException, InterruptedException, TimeoutException;
+
+    /**
+     * @return An object that stands for the running shell, or null if there is none yet.
+     *         A restarted shell gets a new object.
+     */
+    Object getSession();
+
+    /**
+     * Closes the shell.
+     */
+    void close() throws IOException;
+}
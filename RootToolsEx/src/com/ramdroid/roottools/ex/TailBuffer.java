@@ -0,0 +1,94 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that only keeps the last bytes that were written to it.
+ *
+ * Used to limit the size of a log while keeping the most recent lines,
+ * which are usually the interesting ones.
+ */
+class TailBuffer extends OutputStream {
+
+    private final byte[] buffer;
+    private int position;
+    private long total;
+
+    public TailBuffer(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    @Override
+    public void write(int b) {
+        buffer[position] = (byte) b;
+        position = (position + 1) % buffer.length;
+        total += 1;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        total += len;
+        if (len >= buffer.length) {
+            // only the end of the data survives anyway
+            System.arraycopy(b, off + len - buffer.length, buffer, 0, buffer.length);
+            position = 0;
+            return;
+        }
+        int first = Math.min(len, buffer.length - position);
+        System.arraycopy(b, off, buffer, position, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
+        position = (position + len) % buffer.length;
+    }
+
+    /**
+     * @return Number of bytes that didn't fit into the buffer
+     */
+    public long dropped() {
+        return Math.max(0, total - buffer.length);
+    }
+
+    /**
+     * Writes the buffered bytes, oldest first. If older data was dropped then the
+     * first incomplete line is skipped and a note is added instead.
+     *
+     * @param out Receives the content of the buffer
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (total <= buffer.length) {
+            out.write(buffer, 0, (int) total);
+            return;
+        }
+
+        // skip the rest of the line that was cut off
+        int start = position;
+        int skipped = 0;
+        while (skipped < buffer.length && buffer[(start + skipped) % buffer.length] != '\n') {
+            skipped += 1;
+        }
+        skipped = Math.min(skipped + 1, buffer.length);
+        start = (start + skipped) % buffer.length;
+        int remaining = buffer.length - skipped;
+
+        out.write(("--- log truncated, " + (dropped() + skipped) + " bytes dropped ---\n").getBytes());
+        int first = Math.min(remaining, buffer.length - start);
+        out.write(buffer, start, first);
+        out.write(buffer, 0, remaining - first);
+    }
+}
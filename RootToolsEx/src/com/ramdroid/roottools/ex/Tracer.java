@@ -0,0 +1,248 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Lightweight tracing for the shell classes.
+ *
+ * Events are recorded into a ring buffer that is allocated once, so tracing on the
+ * hot path (e.g. for each line of shell output) doesn't create any objects.
+ * When the level of an event is below the current trace level then the call returns
+ * immediately. Output lines are additionally sampled so only every n-th line is kept.
+ *
+ * Use {@link #dump(List)} or {@link #dumpToLog()} to look at the recorded events:
+ *
+ * Tracer.setLevel(Tracer.LEVEL_VERBOSE);
+ * ...
+ * Tracer.dumpToLog();
+ */
+public class Tracer {
+
+    public static final int LEVEL_VERBOSE           = 1;
+    public static final int LEVEL_DEBUG             = 2;
+    public static final int LEVEL_INFO              = 3;
+    public static final int LEVEL_WARN              = 4;
+    public static final int LEVEL_ERROR             = 5;
+    public static final int LEVEL_OFF               = 6;
+
+    public static final int EVENT_CMD_START         = 1;
+    public static final int EVENT_CMD_OUTPUT        = 2;
+    public static final int EVENT_CMD_EXIT          = 3;
+    public static final int EVENT_CMD_ERROR         = 4;
+    public static final int EVENT_APP_FOUND         = 5;
+    public static final int EVENT_APP_OUTPUT        = 6;
+    public static final int EVENT_APP_SPACE         = 7;
+    public static final int EVENT_APP_MOVE          = 8;
+    public static final int EVENT_FAST_PATH         = 9;
+    public static final int EVENT_CMD_HEDGE         = 10;
+
+    private static final String[] EVENT_NAMES = new String[] {
+            "", "CMD_START", "CMD_OUTPUT", "CMD_EXIT", "CMD_ERROR",
+            "APP_FOUND", "APP_OUTPUT", "APP_SPACE", "APP_MOVE", "FAST_PATH", "CMD_HEDGE" };
+
+    private static final String[] LEVEL_NAMES = new String[] { "", "V", "D", "I", "W", "E", "" };
+
+    private static final int DEFAULT_CAPACITY = 512;
+
+    private static final String TAG = "Tracer";
+
+    private static volatile int level = LEVEL_INFO;
+    private static volatile int sampleRate = 1;
+    private static volatile boolean mirrorToLog = false;
+
+    private static long[] times = new long[DEFAULT_CAPACITY];
+    private static int[] levels = new int[DEFAULT_CAPACITY];
+    private static int[] events = new int[DEFAULT_CAPACITY];
+    private static int[] ids = new int[DEFAULT_CAPACITY];
+    private static long[] values = new long[DEFAULT_CAPACITY];
+    private static Object[] details = new Object[DEFAULT_CAPACITY];
+    private static int next = 0;
+    private static int count = 0;
+    private static int sampleCounter = 0;
+
+    /**
+     * Set the minimum level of events that are recorded.
+     * Use LEVEL_OFF to disable tracing completely.
+     *
+     * @param level One of the LEVEL_xxx constants
+     */
+    public static void setLevel(int level) {
+        Tracer.level = level;
+    }
+
+    /**
+     * Only record every n-th output line. Other events are always recorded.
+     *
+     * @param sampleRate 1 to record every line, 10 to record every 10th line, etc.
+     */
+    public static void setSampleRate(int sampleRate) {
+        Tracer.sampleRate = sampleRate < 1 ? 1 : sampleRate;
+    }
+
+    /**
+     * Additionally write each recorded event to logcat.
+     * This is slow and should only be enabled while debugging.
+     *
+     * @param mirrorToLog true to write events to logcat as well
+     */
+    public static void setMirrorToLog(boolean mirrorToLog) {
+        Tracer.mirrorToLog = mirrorToLog;
+    }
+
+    /**
+     * Change the size of the ring buffer. All recorded events are dropped.
+     *
+     * @param capacity Maximum number of events that are kept
+     */
+    public static synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        times = new long[capacity];
+        levels = new int[capacity];
+        events = new int[capacity];
+        ids = new int[capacity];
+        values = new long[capacity];
+        details = new Object[capacity];
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * @param level One of the LEVEL_xxx constants
+     * @return true if events of this level are recorded
+     */
+    public static boolean isEnabled(int level) {
+        return level >= Tracer.level;
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param level One of the LEVEL_xxx constants
+     * @param event One of the EVENT_xxx constants
+     * @param id Command ID or 0
+     * @param value Additional number, e.g. an exit code or a line length
+     * @param detail Reference to an existing object (e.g. a line of output), or null
+     */
+    public static void trace(int level, int event, int id, long value, Object detail) {
+        if (level < Tracer.level) {
+            return;
+        }
+        record(level, event, id, value, detail);
+    }
+
+    /**
+     * Record a line of output. Lines are sampled using the current sample rate.
+     *
+     * @param level One of the LEVEL_xxx constants
+     * @param event One of the EVENT_xxx constants
+     * @param id Command ID or 0
+     * @param line Line of output
+     */
+    public static void traceLine(int level, int event, int id, String line) {
+        if (level < Tracer.level) {
+            return;
+        }
+        synchronized (Tracer.class) {
+            sampleCounter += 1;
+            if (sampleCounter < sampleRate) {
+                return;
+            }
+            sampleCounter = 0;
+        }
+        record(level, event, id, line != null ? line.length() : 0, line);
+    }
+
+    /**
+     * Drop all recorded events.
+     */
+    public static synchronized void clear() {
+        for (int i = 0; i < details.length; ++i) {
+            details[i] = null;
+        }
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Copy all recorded events in a readable format, oldest first.
+     *
+     * @param out List that receives one line per event
+     */
+    public static synchronized void dump(List<String> out) {
+        int capacity = times.length;
+        int first = (next - count + capacity) % capacity;
+        for (int i = 0; i < count; ++i) {
+            out.add(format((first + i) % capacity));
+        }
+    }
+
+    /**
+     * Write all recorded events to logcat, oldest first.
+     */
+    public static synchronized void dumpToLog() {
+        int capacity = times.length;
+        int first = (next - count + capacity) % capacity;
+        for (int i = 0; i < count; ++i) {
+            Log.d(TAG, format((first + i) % capacity));
+        }
+    }
+
+    private static void record(int level, int event, int id, long value, Object detail) {
+        synchronized (Tracer.class) {
+            int i = next;
+            // same clock as SystemClock.uptimeMillis(), but it also works on a plain JVM
+            times[i] = System.nanoTime() / 1000000;
+            levels[i] = level;
+            events[i] = event;
+            ids[i] = id;
+            values[i] = value;
+            details[i] = detail;
+            next = (i + 1) % times.length;
+            if (count < times.length) {
+                count += 1;
+            }
+        }
+        if (mirrorToLog) {
+            Log.d(TAG, format(event, id, value, detail));
+        }
+    }
+
+    private static String format(int i) {
+        return times[i] + " " + LEVEL_NAMES[levels[i]] + " " + format(events[i], ids[i], values[i], details[i]);
+    }
+
+    private static String format(int event, int id, long value, Object detail) {
+        String name = (event > 0 && event < EVENT_NAMES.length) ? EVENT_NAMES[event] : String.valueOf(event);
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(" id=").append(id).append(" value=").append(value);
+        if (detail instanceof String[]) {
+            for (String s : (String[]) detail) {
+                sb.append(" ").append(s);
+            }
+        }
+        else if (detail != null) {
+            sb.append(" ").append(detail);
+        }
+        return sb.toString();
+    }
+}
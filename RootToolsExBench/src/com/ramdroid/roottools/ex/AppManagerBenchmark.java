@@ -0,0 +1,98 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookup of an app on a partition, including parsing the shell output.
+ *
+ * The partition is a temporary directory with fake APK files. busybox is replaced by a
+ * shell function, so the commands run unchanged in /bin/sh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AppManagerBenchmark {
+
+    @Param({ "50", "500" })
+    public int apps;
+
+    private File partition;
+    private String partitionName;
+    private String existing;
+    private ShellExec exec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        partition = File.createTempFile("partition", "");
+        partition.delete();
+        File appDir = new File(partition, "app");
+        appDir.mkdirs();
+        for (int i = 0; i < apps; ++i) {
+            new File(appDir, "com.example.app" + i + "-1.apk").createNewFile();
+        }
+        // AppManager adds the leading slash itself
+        partitionName = partition.getAbsolutePath().substring(1);
+        existing = "com.example.app" + (apps / 2) + "-";
+
+        exec = new ShellExec(false, new ProcessTransport(ShellExecBenchmark.SHELL));
+        exec.run("busybox() { \"$@\"; }");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        exec.destroy();
+        File[] files = new File(partition, "app").listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        new File(partition, "app").delete();
+        partition.delete();
+    }
+
+    @Benchmark
+    public int existingApp() {
+        return AppManager.Internal.appExistsOnPartitionWithRoot(exec, existing, partitionName);
+    }
+
+    @Benchmark
+    public int missingApp() {
+        return AppManager.Internal.appExistsOnPartitionWithRoot(exec, "com.example.missing", partitionName);
+    }
+}
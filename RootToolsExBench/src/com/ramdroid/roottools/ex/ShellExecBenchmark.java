@@ -0,0 +1,115 @@
+package com.ramdroid.roottools.ex;
+
+/**
+ *    Copyright 2012 by Ronald Ammann (ramdroid)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the execution layer: one short command, a batch of commands sent in one
+ * call, and a command with a large output. Run with -prof gc to see the allocation
+ * rate of the output handling.
+ *
+ * The commands run in /bin/sh through a {@link ProcessTransport}, so no device is needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ShellExecBenchmark {
+
+    static final String SHELL = System.getProperty("roottoolsex.shell", "/bin/sh");
+
+    @State(Scope.Thread)
+    public static class Shell {
+
+        ShellExec exec;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            exec = new ShellExec(false, new ProcessTransport(SHELL));
+            exec.run("true");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            exec.destroy();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+
+        @Param({ "10", "100" })
+        public int size;
+
+        String[] commands;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            commands = new String[size];
+            for (int i = 0; i < size; ++i) {
+                commands[i] = "echo line" + i;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LargeOutput {
+
+        @Param({ "1000", "100000" })
+        public int lines;
+
+        String command;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            command = "seq 1 " + lines;
+        }
+    }
+
+    @Benchmark
+    public int singleCommand(Shell shell) {
+        return shell.exec.run("echo hello");
+    }
+
+    @Benchmark
+    public int batch(Shell shell, Batch batch) {
+        return shell.exec.run(batch.commands);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int largeOutput(Shell shell, LargeOutput largeOutput) {
+        shell.exec.run(largeOutput.command);
+        return shell.exec.output.size();
+    }
+}
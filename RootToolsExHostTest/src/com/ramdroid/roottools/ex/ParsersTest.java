@@ -0,0 +1,256 @@
+package com.ramdroid.roottools.ex;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the parsers with output captured from toolbox, toybox, busybox and GNU coreutils.
+ */
+public class ParsersTest {
+
+    private static <T> List<T> parse(OutputParser<T> parser, String output) throws Exception {
+        // small chunks, so lines are split between writes like in a pipe
+        byte[] bytes = output.getBytes(Charset.forName("UTF-8"));
+        for (int off = 0; off < bytes.length; off += 7) {
+            parser.write(bytes, off, Math.min(7, bytes.length - off));
+        }
+        parser.close();
+        return parser.getRecords();
+    }
+
+    private static void assertDisk(Parsers.DiskUsage d, String filesystem, String mountPoint, long sizeKb, long usedKb, long freeKb) {
+        assertEquals(filesystem, d.filesystem);
+        assertEquals(mountPoint, d.mountPoint);
+        assertEquals(sizeKb, d.sizeKb);
+        assertEquals(usedKb, d.usedKb);
+        assertEquals(freeKb, d.freeKb);
+    }
+
+    @Test
+    public void dfToolbox() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem             Size   Used   Free   Blksize\n"
+                + "/dev                   918M    48K   918M   4096\n"
+                + "/system                  1G   845M   163M   4096\n"
+                + "/data                   12.5G   3G     9G   4096\n");
+        assertEquals(3, list.size());
+        assertDisk(list.get(0), null, "/dev", 918 * 1024, 48, 918 * 1024);
+        assertDisk(list.get(1), null, "/system", 1024 * 1024, 845 * 1024, 163 * 1024);
+        assertDisk(list.get(2), null, "/data", 12 * 1024 * 1024 + 512 * 1024, 3 * 1024 * 1024, 9 * 1024 * 1024);
+    }
+
+    @Test
+    public void dfToybox() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem            1K-blocks    Used Available Use% Mounted on\n"
+                + "tmpfs                   1441732     604   1441128   1% /dev\n"
+                + "/dev/block/dm-0         3030800 2826868    187548  94% /\n");
+        assertEquals(2, list.size());
+        assertDisk(list.get(0), "tmpfs", "/dev", 1441732, 604, 1441128);
+        assertDisk(list.get(1), "/dev/block/dm-0", "/", 3030800, 2826868, 187548);
+    }
+
+    @Test
+    public void dfToyboxHumanReadable() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem       Size  Used Avail Use% Mounted on\n"
+                + "/dev/block/dm-0  2.5G  2.0G  512M  80% /system\n");
+        assertEquals(1, list.size());
+        assertDisk(list.get(0), "/dev/block/dm-0", "/system", 2 * 1024 * 1024 + 512 * 1024, 2 * 1024 * 1024, 512 * 1024);
+    }
+
+    @Test
+    public void dfBusybox() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem           1K-blocks      Used Available Use% Mounted on\n"
+                + "tmpfs                   470012        48    469964   0% /dev\n"
+                + "/dev/block/platform/msm_sdcc.1/by-name/system\n"
+                + "                        1032088    864636    167452  84% /system\n");
+        assertEquals(2, list.size());
+        assertDisk(list.get(0), "tmpfs", "/dev", 470012, 48, 469964);
+        assertDisk(list.get(1), "/dev/block/platform/msm_sdcc.1/by-name/system", "/system", 1032088, 864636, 167452);
+    }
+
+    @Test
+    public void dfBusyboxHumanReadable() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem                Size      Used Available Use% Mounted on\n"
+                + "tmpfs                   459.0M     48.0K    458.9M   0% /dev\n"
+                + "/dev/block/platform/msm_sdcc.1/by-name/userdata\n"
+                + "                          5.5G      1.0G      4.5G  18% /data\n");
+        assertEquals(2, list.size());
+        assertDisk(list.get(0), "tmpfs", "/dev", 459 * 1024, 48, 458 * 1024 + 921);
+        assertDisk(list.get(1), "/dev/block/platform/msm_sdcc.1/by-name/userdata", "/data",
+                5 * 1024 * 1024 + 512 * 1024, 1024 * 1024, 4 * 1024 * 1024 + 512 * 1024);
+    }
+
+    @Test
+    public void dfGnuHumanReadable() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem      Size  Used Avail Use% Mounted on\n"
+                + "/dev/sda1        20G   15G  4.0G  79% /mnt/my disk\n");
+        assertEquals(1, list.size());
+        assertDisk(list.get(0), "/dev/sda1", "/mnt/my disk", 20 * 1024 * 1024, 15 * 1024 * 1024, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void dfPosixBlocks() throws Exception {
+        List<Parsers.DiskUsage> list = parse(Parsers.df(),
+                "Filesystem     512-blocks    Used Available Capacity Mounted on\n"
+                + "/dev/sda1        2048000  1024000  1024000      50% /\n");
+        assertEquals(1, list.size());
+        assertDisk(list.get(0), "/dev/sda1", "/", 1024000, 512000, 512000);
+    }
+
+    @Test
+    public void lsToolbox() throws Exception {
+        List<Parsers.FileEntry> list = parse(Parsers.ls(),
+                "drwxr-xr-x root     root              2013-05-01 12:00 app\n"
+                + "-rw-r--r-- root     root         1234 2013-05-01 12:01 build.prop\n"
+                + "lrwxrwxrwx root     root              2013-05-01 12:02 etc -> /system/etc\n"
+                + "crw-rw-rw- root     root       1,   3 2013-05-01 12:03 null\n");
+        assertEquals(4, list.size());
+
+        Parsers.FileEntry dir = list.get(0);
+        assertTrue(dir.isDirectory());
+        assertEquals("app", dir.name);
+        assertEquals("root", dir.owner);
+        assertEquals("2013-05-01 12:00", dir.date);
+
+        Parsers.FileEntry file = list.get(1);
+        assertFalse(file.isDirectory());
+        assertEquals("build.prop", file.name);
+        assertEquals(1234, file.size);
+        assertEquals(0, file.links);
+
+        Parsers.FileEntry link = list.get(2);
+        assertTrue(link.isLink());
+        assertEquals("etc", link.name);
+        assertEquals("/system/etc", link.linkTarget);
+
+        Parsers.FileEntry device = list.get(3);
+        assertEquals("null", device.name);
+        assertEquals(0, device.size);
+    }
+
+    @Test
+    public void lsToyboxRecursive() throws Exception {
+        List<Parsers.FileEntry> list = parse(Parsers.ls(),
+                "/system:\n"
+                + "total 8\n"
+                + "drwxr-xr-x  2 root root 4096 2009-01-01 08:00 bin\n"
+                + "\n"
+                + "/system/bin:\n"
+                + "total 4\n"
+                + "-rwxr-xr-x  1 root shell 98304 2009-01-01 08:00 sh\n");
+        assertEquals(2, list.size());
+        assertEquals("/system/bin", list.get(0).path);
+        assertEquals(2, list.get(0).links);
+        assertEquals("/system/bin/sh", list.get(1).path);
+        assertEquals("shell", list.get(1).group);
+        assertEquals(98304, list.get(1).size);
+    }
+
+    @Test
+    public void lsBusybox() throws Exception {
+        List<Parsers.FileEntry> list = parse(Parsers.ls(),
+                "-rw-r--r--    1 root     root          1234 Jan  1 12:00 build.prop\n"
+                + "-rw-r--r--    1 root     root             5 Jan  1  2012 my file.txt\n");
+        assertEquals(2, list.size());
+        assertEquals("build.prop", list.get(0).name);
+        assertEquals(1, list.get(0).links);
+        assertEquals(1234, list.get(0).size);
+        assertEquals("Jan  1 12:00", list.get(0).date);
+        assertEquals("my file.txt", list.get(1).name);
+    }
+
+    @Test
+    public void psToolbox() throws Exception {
+        List<Parsers.ProcessEntry> list = parse(Parsers.ps(),
+                "USER     PID   PPID  VSIZE  RSS     WCHAN    PC         NAME\n"
+                + "root      1     0     1000   500   ffffffff 00000000 S /init\n"
+                + "u0_a12    1234  100   900000 40000 ffffffff 00000000 S com.android.phone\n");
+        assertEquals(2, list.size());
+        Parsers.ProcessEntry p = list.get(1);
+        assertEquals("u0_a12", p.user);
+        assertEquals(1234, p.pid);
+        assertEquals(100, p.ppid);
+        assertEquals(900000, p.vsizeKb);
+        assertEquals(40000, p.rssKb);
+        assertEquals("com.android.phone", p.name);
+    }
+
+    @Test
+    public void psToybox() throws Exception {
+        List<Parsers.ProcessEntry> list = parse(Parsers.ps(),
+                "USER           PID  PPID     VSZ    RSS WCHAN            ADDR S NAME\n"
+                + "root             1     0 2183080   4536 0                   0 S init\n"
+                + "system         612     1 4367348  51260 0                   0 S system_server\n");
+        assertEquals(2, list.size());
+        assertEquals("init", list.get(0).name);
+        assertEquals(612, list.get(1).pid);
+        assertEquals(51260, list.get(1).rssKb);
+        assertEquals("system_server", list.get(1).name);
+    }
+
+    @Test
+    public void psBusybox() throws Exception {
+        List<Parsers.ProcessEntry> list = parse(Parsers.ps(),
+                "PID   USER     TIME   COMMAND\n"
+                + "    1 0        0:02 /init\n"
+                + "  420 1000     1:10 /system/bin/app_process -Xzygote\n");
+        assertEquals(2, list.size());
+        assertEquals(1, list.get(0).pid);
+        assertEquals("0", list.get(0).user);
+        assertEquals("/system/bin/app_process -Xzygote", list.get(1).name);
+    }
+
+    @Test
+    public void mount() throws Exception {
+        List<Parsers.MountPoint> list = parse(Parsers.mount(),
+                "rootfs / rootfs ro,relatime 0 0\n"
+                + "/dev/block/mmcblk0p9 on /system type ext4 (rw,relatime)\n");
+        assertEquals(2, list.size());
+        assertEquals("/", list.get(0).mountPoint);
+        assertEquals("rootfs", list.get(0).type);
+        assertTrue(list.get(0).isReadOnly());
+        assertEquals("/dev/block/mmcblk0p9", list.get(1).device);
+        assertEquals("/system", list.get(1).mountPoint);
+        assertEquals("rw,relatime", list.get(1).options);
+        assertFalse(list.get(1).isReadOnly());
+    }
+
+    @Test
+    public void packages() throws Exception {
+        List<Parsers.PackageEntry> list = parse(Parsers.packages(),
+                "package:com.android.settings\n"
+                + "package:/system/app/Settings.apk=com.android.settings\n"
+                + "package:/data/app/~~a1b2==/com.example-c3d4==/base.apk=com.example\r\n");
+        assertEquals(3, list.size());
+        assertEquals("com.android.settings", list.get(0).packageName);
+        assertNull(list.get(0).apkPath);
+        assertEquals("/system/app/Settings.apk", list.get(1).apkPath);
+        assertEquals("/data/app/~~a1b2==/com.example-c3d4==/base.apk", list.get(2).apkPath);
+        assertEquals("com.example", list.get(2).packageName);
+    }
+
+    @Test
+    public void getprop() throws Exception {
+        List<Parsers.Property> list = parse(Parsers.getprop(),
+                "[ro.build.version.sdk]: [17]\n"
+                + "[ro.empty]: []\n"
+                + "[ro.product.model]: [Galaxy Nexus]");
+        assertEquals(3, list.size());
+        assertEquals("ro.build.version.sdk", list.get(0).key);
+        assertEquals("17", list.get(0).value);
+        assertEquals("", list.get(1).value);
+        assertEquals("Galaxy Nexus", list.get(2).value);
+    }
+}
@@ -0,0 +1,87 @@
+package com.ramdroid.roottools.ex.test;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a {@link LoadTest} with the settings from the screen and exports the results as CSV.
+ */
+public class BenchmarkActivity extends Activity {
+
+    private static final String CSV_FILE = "loadtest.csv";
+
+    private TextView result;
+    private List<LoadTest.Result> results = new ArrayList<LoadTest.Result>();
+    private boolean running;
+
+    /**
+     * Called when the activity is first created.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.benchmark);
+        result = (TextView) findViewById(R.id.result);
+    }
+
+    public void runBenchmark(View v) {
+        if (running) {
+            return;
+        }
+        LoadTest.Config config = new LoadTest.Config();
+        config.target = ((Spinner) findViewById(R.id.target)).getSelectedItemPosition();
+        config.useRoot = ((CheckBox) findViewById(R.id.use_root)).isChecked();
+        config.setCommands(((EditText) findViewById(R.id.commands)).getText().toString());
+        config.concurrency = readNumber(R.id.concurrency, config.concurrency);
+        config.rate = readNumber(R.id.rate, config.rate);
+        config.count = readNumber(R.id.count, config.count);
+
+        running = true;
+        result.setText("");
+        new LoadTest(this, config, new LoadTest.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                if (done % 10 == 0) {
+                    result.setText(done + " / " + total);
+                }
+            }
+
+            @Override
+            public void onFinished(LoadTest.Result r) {
+                running = false;
+                results.add(r);
+                result.setText(r.toText());
+            }
+        }).start();
+    }
+
+    public void exportCsv(View v) {
+        File file = new File(getExternalFilesDir(null), CSV_FILE);
+        try {
+            LoadTest.writeCsv(file, results);
+            result.setText(getString(R.string.benchmark_exported, results.size(), file.getAbsolutePath()));
+            results.clear();
+        } catch (IOException e) {
+            result.setText(e.toString());
+        }
+    }
+
+    private int readNumber(int id, int defaultValue) {
+        try {
+            return Integer.parseInt(((EditText) findViewById(id)).getText().toString().trim());
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.ramdroid.roottools.ex.test;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.ramdroid.roottools.ex.AsyncShell;
+import com.ramdroid.roottools.ex.CommandBuilder;
+import com.ramdroid.roottools.ex.ErrorCode;
+import com.ramdroid.roottools.ex.ShellService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Fires a mix of shell commands through {@link AsyncShell} or {@link ShellService} at a
+ * given concurrency and rate, and measures latencies, failures, spawned shells and memory.
+ *
+ * Requests are issued and completed on the main thread. Please note that AsyncShell uses
+ * AsyncTask.execute(), which runs one task at a time on Android 3.0 and newer.
+ *
+ * Used by the {@link BenchmarkActivity} and the {@link LoadTestRunner}.
+ */
+public class LoadTest {
+
+    public static final int TARGET_ASYNCSHELL = 0;
+    public static final int TARGET_SHELLSERVICE = 1;
+    public static final int TARGET_PARCEL = 2;
+
+    private static final String[] TARGET_NAMES = new String[] { "AsyncShell", "ShellService", "Parcel" };
+    private static final String READY_MARKER = "loadtest-ready";
+    private static final long READY_RETRY = 500;
+    private static final long SAMPLE_INTERVAL = 50;
+
+    public interface Listener {
+        void onProgress(int done, int total);
+        void onFinished(Result result);
+    }
+
+    /**
+     * What to run.
+     */
+    public static class Config {
+
+        public int target = TARGET_ASYNCSHELL;
+        public boolean useRoot = true;
+        public String[] commands = new String[] { "ls /data/data", "id", "cat /proc/meminfo" };
+        public int concurrency = 4;
+        public int rate = 0;
+        public int count = 200;
+
+        /**
+         * @param commands Commands separated by ';', they are sent in turns.
+         */
+        public void setCommands(String commands) {
+            this.commands = commands.split("\\s*;\\s*");
+        }
+
+        public String getTargetName() {
+            return TARGET_NAMES[target];
+        }
+    }
+
+    /**
+     * What we measured.
+     */
+    public static class Result {
+
+        public final Config config;
+        public long durationMs;
+        public int failures;
+        public long[] latencies;
+        public int shellsSpawned;
+        public int maxShells;
+        public long memoryHighWater;
+
+        Result(Config config) {
+            this.config = config;
+        }
+
+        /**
+         * @param p Percentile between 0 and 100.
+         * @return Latency in microseconds.
+         */
+        public long percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+
+        public double throughput() {
+            return durationMs > 0 ? latencies.length * 1000.0 / durationMs : 0;
+        }
+
+        public String toText() {
+            return String.format(Locale.US,
+                    "%s: %d requests, %d failed, %.1f/s\np50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms\n%d shells spawned (max %d at once), memory %d kB\n",
+                    config.getTargetName(), latencies.length, failures, throughput(),
+                    percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, percentile(100) / 1000.0,
+                    shellsSpawned, maxShells, memoryHighWater / 1024);
+        }
+
+        static String csvHeader() {
+            return "model,android,target,root,commands,concurrency,rate,requests,failures,duration_ms,throughput,"
+                    + "p50_us,p90_us,p99_us,max_us,shells_spawned,max_shells,memory_kb";
+        }
+
+        String toCsv() {
+            StringBuilder commands = new StringBuilder();
+            for (String cmd : config.commands) {
+                if (commands.length() > 0) {
+                    commands.append(';');
+                }
+                commands.append(cmd.replace("\"", "\"\""));
+            }
+            return String.format(Locale.US, "\"%s %s\",%s,%s,%b,\"%s\",%d,%d,%d,%d,%d,%.2f,%d,%d,%d,%d,%d,%d,%d",
+                    Build.MANUFACTURER, Build.MODEL, Build.VERSION.RELEASE, config.getTargetName(), config.useRoot,
+                    commands, config.concurrency, config.rate, latencies.length, failures, durationMs, throughput(),
+                    percentile(50), percentile(90), percentile(99), percentile(100),
+                    shellsSpawned, maxShells, memoryHighWater / 1024);
+        }
+    }
+
+    /**
+     * Appends the results to a CSV file. The header is written if the file is new.
+     */
+    public static void writeCsv(File file, List<Result> results) throws IOException {
+        boolean exists = file.exists() && file.length() > 0;
+        FileWriter out = new FileWriter(file, true);
+        try {
+            if (!exists) {
+                out.write(Result.csvHeader() + "\n");
+            }
+            for (Result result : results) {
+                out.write(result.toCsv() + "\n");
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private final Context context;
+    private final Config config;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Result result;
+    private final long[] latencies;
+    private final LinkedList<Long> pending = new LinkedList<Long>();
+    private Sampler sampler;
+    private boolean ready;
+    private long startTime;
+    private int issued;
+    private int done;
+    private int outstanding;
+
+    public LoadTest(Context context, Config config, Listener listener) {
+        this.context = context;
+        this.config = config;
+        this.listener = listener;
+        this.result = new Result(config);
+        this.latencies = new long[config.count];
+    }
+
+    /**
+     * Starts the test, can be called from any thread.
+     */
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sampler = new Sampler();
+                sampler.start();
+                if (config.target == TARGET_SHELLSERVICE) {
+                    startService();
+                }
+                else {
+                    begin();
+                }
+            }
+        });
+    }
+
+    private void begin() {
+        ready = true;
+        startTime = SystemClock.elapsedRealtime();
+        issue();
+    }
+
+    private final Runnable issueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            issue();
+        }
+    };
+
+    private void issue() {
+        while (outstanding < config.concurrency && issued < config.count) {
+            if (config.rate > 0) {
+                long due = startTime + issued * 1000L / config.rate;
+                long now = SystemClock.elapsedRealtime();
+                if (due > now) {
+                    handler.removeCallbacks(issueRunnable);
+                    handler.postDelayed(issueRunnable, due - now);
+                    return;
+                }
+            }
+            String command = config.commands[issued % config.commands.length];
+            issued += 1;
+            outstanding += 1;
+            send(command);
+        }
+    }
+
+    private void send(String command) {
+        final long start = System.nanoTime();
+        if (config.target == TARGET_ASYNCSHELL) {
+            AsyncShell.send(config.useRoot, command, new ErrorCode.OutputListener() {
+                @Override
+                public void onResult(int errorCode, List<String> output) {
+                    complete(start, errorCode == ErrorCode.NONE);
+                }
+            });
+        }
+        else if (config.target == TARGET_SHELLSERVICE) {
+            // the service doesn't tell which request a result belongs to, so we go by order
+            pending.add(start);
+            ShellService.send(context, command);
+        }
+        else {
+            Parcel parcel = Parcel.obtain();
+            new CommandBuilder().add(command).writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            CommandBuilder copy = CommandBuilder.CREATOR.createFromParcel(parcel);
+            parcel.recycle();
+            complete(start, copy != null);
+        }
+    }
+
+    private void complete(long start, boolean success) {
+        latencies[done] = (System.nanoTime() - start) / 1000;
+        done += 1;
+        outstanding -= 1;
+        if (!success) {
+            result.failures += 1;
+        }
+        if (listener != null) {
+            listener.onProgress(done, config.count);
+        }
+        if (done == config.count) {
+            finish();
+        }
+        else if (config.target == TARGET_PARCEL) {
+            // don't recurse, give the main thread a chance to breathe
+            handler.post(issueRunnable);
+        }
+        else {
+            issue();
+        }
+    }
+
+    private void finish() {
+        result.durationMs = SystemClock.elapsedRealtime() - startTime;
+        sampler.finish();
+        result.shellsSpawned = sampler.children.size();
+        result.maxShells = sampler.maxChildren;
+        result.memoryHighWater = sampler.maxMemory;
+        Arrays.sort(latencies);
+        result.latencies = latencies;
+        if (config.target == TARGET_SHELLSERVICE) {
+            ShellService.stop(context);
+        }
+        if (listener != null) {
+            listener.onFinished(result);
+        }
+    }
+
+    private void startService() {
+        ShellService.start(context, config.useRoot, new ErrorCode.OutputListener() {
+            @Override
+            public void onResult(final int errorCode, final List<String> output) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (output != null && output.contains(READY_MARKER)) {
+                            if (!ready) {
+                                begin();
+                            }
+                        }
+                        else if (!pending.isEmpty()) {
+                            complete(pending.removeFirst(), errorCode == ErrorCode.NONE);
+                        }
+                    }
+                });
+            }
+        });
+
+        // broadcasts get lost until the service is up, so knock until it answers
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!ready) {
+                    ShellService.send(context, "echo " + READY_MARKER);
+                    handler.postDelayed(this, READY_RETRY);
+                }
+            }
+        });
+    }
+
+    /**
+     * Watches the child processes (the shells) and the memory usage while the test runs.
+     */
+    private static class Sampler extends Thread {
+
+        final Set<Integer> children = new HashSet<Integer>();
+        int maxChildren;
+        long maxMemory;
+        private volatile boolean running = true;
+        private final byte[] buffer = new byte[512];
+
+        @Override
+        public void run() {
+            int myPid = Process.myPid();
+            while (running) {
+                sample(myPid);
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() {
+            running = false;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // use what we have
+            }
+            sample(Process.myPid());
+        }
+
+        private synchronized void sample(int myPid) {
+            Runtime runtime = Runtime.getRuntime();
+            long memory = runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+            maxMemory = Math.max(maxMemory, memory);
+
+            String[] names = new File("/proc").list();
+            if (names == null) {
+                return;
+            }
+            int count = 0;
+            for (String name : names) {
+                if (name.length() == 0 || !Character.isDigit(name.charAt(0))) {
+                    continue;
+                }
+                if (parentOf(name) == myPid) {
+                    children.add(Integer.parseInt(name));
+                    count += 1;
+                }
+            }
+            maxChildren = Math.max(maxChildren, count);
+        }
+
+        private int parentOf(String pid) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream("/proc/" + pid + "/stat");
+                int len = in.read(buffer);
+                String stat = new String(buffer, 0, Math.max(0, len));
+                // pid (comm) state ppid ...
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return Integer.parseInt(fields[1]);
+            } catch (Exception e) {
+                return -1;
+            }
+            finally {
+                try {
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.ramdroid.roottools.ex.test;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a {@link LoadTest} from the command line, e.g.
+ *
+ * adb shell am instrument -w -e target shellservice -e concurrency 8 -e rate 20 -e count 1000 \
+ *      -e commands "ls /data/data;id" com.ramdroid.roottools.ex.test/.LoadTestRunner
+ *
+ * Targets are asyncshell, shellservice and parcel. Add "-e root false" for a normal shell.
+ * The result is printed and appended to loadtest.csv in the external files directory of the app.
+ *
+ * With "-e checkfailures true" every second command fails, and the run only passes if
+ * exactly these requests were counted as failures.
+ */
+public class LoadTestRunner extends Instrumentation {
+
+    private static final String CSV_FILE = "loadtest.csv";
+    // a subshell, so neither the fast path nor the shell itself can skip it
+    private static final String FAILING_COMMAND = "(exit 1)";
+
+    private LoadTest.Config config;
+    private boolean checkFailures;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        config = new LoadTest.Config();
+        if (arguments != null) {
+            String target = arguments.getString("target");
+            if ("shellservice".equals(target)) {
+                config.target = LoadTest.TARGET_SHELLSERVICE;
+            }
+            else if ("parcel".equals(target)) {
+                config.target = LoadTest.TARGET_PARCEL;
+            }
+            if (arguments.getString("commands") != null) {
+                config.setCommands(arguments.getString("commands"));
+            }
+            config.useRoot = !"false".equals(arguments.getString("root"));
+            config.concurrency = readNumber(arguments, "concurrency", config.concurrency);
+            config.rate = readNumber(arguments, "rate", config.rate);
+            config.count = readNumber(arguments, "count", config.count);
+            checkFailures = "true".equals(arguments.getString("checkfailures"));
+            if (checkFailures) {
+                config.commands = new String[] { "id", FAILING_COMMAND };
+            }
+        }
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<LoadTest.Result> results = new ArrayList<LoadTest.Result>();
+        new LoadTest(getTargetContext(), config, new LoadTest.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+            }
+
+            @Override
+            public void onFinished(LoadTest.Result result) {
+                results.add(result);
+                finished.countDown();
+            }
+        }).start();
+
+        Bundle status = new Bundle();
+        try {
+            finished.await();
+            LoadTest.Result result = results.get(0);
+            String text = result.toText();
+            File file = new File(getTargetContext().getExternalFilesDir(null), CSV_FILE);
+            LoadTest.writeCsv(file, results);
+            int resultCode = Activity.RESULT_OK;
+            if (checkFailures) {
+                int expected = config.count / 2;
+                boolean passed = (result.failures == expected);
+                text += "Failure check " + (passed ? "passed" : "FAILED")
+                        + ": expected " + expected + ", counted " + result.failures + "\n";
+                if (!passed) {
+                    resultCode = Activity.RESULT_CANCELED;
+                }
+            }
+            status.putString("stream", text + "CSV: " + file.getAbsolutePath() + "\n");
+            finish(resultCode, status);
+        } catch (InterruptedException e) {
+            status.putString("stream", e.toString() + "\n");
+            finish(Activity.RESULT_CANCELED, status);
+        } catch (IOException e) {
+            status.putString("stream", e.toString() + "\n");
+            finish(Activity.RESULT_CANCELED, status);
+        }
+    }
+
+    private static int readNumber(Bundle arguments, String key, int defaultValue) {
+        try {
+            String value = arguments.getString(key);
+            return (value != null) ? Integer.parseInt(value) : defaultValue;
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -2,20 +2,18 @@ package com.ramdroid.roottools.ex.test;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.os.Handler;
 import android.view.View;
 import android.widget.TextView;
 
 import com.ramdroid.roottools.ex.CommandBuilder;
 import com.ramdroid.roottools.ex.ErrorCode.OutputListener;
+import com.ramdroid.roottools.ex.FrameDispatcher;
 import com.ramdroid.roottools.ex.ShellService;
 
 import java.util.List;
 
 public class ShellServiceActivity extends Activity {
 
-    private Handler handler = new Handler();
-
     /**
      * Called when the activity is first created.
      */
@@ -29,22 +27,16 @@ public class ShellServiceActivity extends Activity {
     @Override
     public void onResume() {
         super.onResume();
-        ShellService.start(this, true, new OutputListener() {
+        ShellService.start(this, true, FrameDispatcher.wrap(new OutputListener() {
             @Override
-            public void onResult(int errorCode, final List<String> output) {
-                handler.post(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        String result = "";
-                        for (String s : output) {
-                            result += s + "\n";
-                        }
-                        ((TextView) findViewById(R.id.result)).setText(result);
-                    }
-                });
+            public void onResult(int errorCode, List<String> output) {
+                String result = "";
+                for (String s : output) {
+                    result += s + "\n";
+                }
+                ((TextView) findViewById(R.id.result)).setText(result);
             }
-        });
+        }));
     }
 
     @Override